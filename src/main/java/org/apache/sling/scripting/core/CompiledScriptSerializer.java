@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * The {@code CompiledScriptSerializer} can be implemented by a {@link ScriptEngineFactory} whose engines produce
+ * {@link CompiledScript}s that can be turned into bytes, for example generated classes or serialized syntax trees. When the
+ * compiled script store of the script cache is enabled, the compiled scripts of such engines are persisted, so that they're
+ * loaded instead of being compiled again after a restart.
+ * <p>
+ * Persisted scripts are keyed by their path, their source and the name and version of the engine, so a serializer doesn't
+ * need to detect stale data as long as the engine version changes whenever the serialized format does. A compiled script
+ * may therefore depend on the path of its script, which engines get from the {@link ScriptNameAwareReader} they compile
+ * from.
+ */
+@ConsumerType
+public interface CompiledScriptSerializer {
+
+    /**
+     * Serializes a compiled script.
+     *
+     * @param compiledScript the compiled script, produced by an engine of this factory
+     * @param outputStream   the stream to write the compiled script to
+     * @throws IOException if the compiled script cannot be serialized, in which case it's not persisted
+     */
+    void serialize(CompiledScript compiledScript, OutputStream outputStream) throws IOException;
+
+    /**
+     * Deserializes a compiled script.
+     *
+     * @param scriptEngine the engine the compiled script should be bound to
+     * @param inputStream  the stream to read the compiled script from
+     * @return the compiled script
+     * @throws IOException if the compiled script cannot be deserialized, in which case the script is compiled again
+     */
+    CompiledScript deserialize(ScriptEngine scriptEngine, InputStream inputStream) throws IOException;
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core;
+
+import javax.script.CompiledScript;
+
+import java.util.Collection;
+import java.util.Set;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * The {@code ScriptDependencyRegistry} service records which scripts a script depends on, for example the templates it
+ * imports or the use-modules it loads, when their content ends up in the {@link CompiledScript} of the script. Whenever a
+ * script changes or is removed, the script cache evicts all the scripts depending on it, directly or transitively.
+ * <p>
+ * Script engines have to register the dependencies of a script explicitly, each time they compile it: the dependencies
+ * registered while a script is compiled replace the ones registered for its previous compilation. Scripts compiled while
+ * another script is being compiled are registered as its dependencies automatically, but a dependency that is already
+ * cached, and therefore not compiled again, is only known if the engine registers it.
+ */
+@ProviderType
+public interface ScriptDependencyRegistry {
+
+    /**
+     * Records that a script depends on another script.
+     *
+     * @param scriptPath     the path of the depending script
+     * @param dependencyPath the path of the script it depends on
+     */
+    void addDependency(String scriptPath, String dependencyPath);
+
+    /**
+     * Replaces all the dependencies of a script, for example after it was compiled again.
+     *
+     * @param scriptPath      the path of the depending script
+     * @param dependencyPaths the paths of all the scripts it depends on, empty to remove its dependencies
+     */
+    void setDependencies(String scriptPath, Collection<String> dependencyPaths);
+
+    /**
+     * Returns the scripts a script directly depends on.
+     *
+     * @param scriptPath the path of the script
+     * @return the paths of the scripts it depends on, empty if it has no known dependencies
+     */
+    Set<String> getDependencies(String scriptPath);
+
+    /**
+     * Returns the scripts depending on a script, directly or transitively.
+     *
+     * @param scriptPath the path of the script
+     * @return the paths of the depending scripts, empty if no script depends on it
+     */
+    Set<String> getDependents(String scriptPath);
+}
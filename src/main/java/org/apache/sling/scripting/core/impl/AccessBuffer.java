@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Records accesses in a striped, lossy buffer, so that the threads reading a cache don't write to the entries they read,
+ * which would make the cache lines of hot entries bounce between cores. Each thread records into the stripe its identity
+ * hashes to, and the recorded accesses are applied in batches, by one thread at a time.
+ * <p>
+ * An access recorded while its stripe is full is dropped; the usage information derived from the accesses is approximate
+ * anyway.
+ *
+ * @param <T> the type of the accessed elements
+ */
+final class AccessBuffer<T> {
+
+    static final int STRIPE_SIZE = 32;
+
+    private static final int MAX_STRIPES = 64;
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final Lock drainLock = new ReentrantLock();
+
+    AccessBuffer() {
+        final int processors = Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES);
+        final int count = processors <= 1 ? 1 : Integer.highestOneBit(processors - 1) << 1;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * Records an access.
+     *
+     * @param element the accessed element
+     * @return {@code true} if the stripe of the current thread is full and the buffer should be drained
+     */
+    boolean record(final T element) {
+        final Stripe stripe = stripes[spread(System.identityHashCode(Thread.currentThread())) & mask];
+        if (stripe.writes.get() >= STRIPE_SIZE) {
+            return true;
+        }
+        final int index = stripe.writes.getAndIncrement();
+        if (index >= STRIPE_SIZE) {
+            return true;
+        }
+        stripe.slots.lazySet(index, element);
+        return index == STRIPE_SIZE - 1;
+    }
+
+    /**
+     * Applies the recorded accesses, unless another thread is already doing so.
+     *
+     * @param consumer applies an access
+     */
+    @SuppressWarnings("unchecked")
+    void drain(final Consumer<T> consumer) {
+        if (!drainLock.tryLock()) {
+            return;
+        }
+        try {
+            for (final Stripe stripe : stripes) {
+                final int count = Math.min(stripe.writes.get(), STRIPE_SIZE);
+                for (int i = 0; i < count; i++) {
+                    final Object element = stripe.slots.getAndSet(i, null);
+                    if (element != null) {
+                        consumer.accept((T) element);
+                    }
+                }
+                // accesses recorded while draining may be lost, which is tolerated
+                stripe.writes.set(0);
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Stripe {
+
+        private final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(STRIPE_SIZE);
+        private final AtomicInteger writes = new AtomicInteger();
+    }
+}
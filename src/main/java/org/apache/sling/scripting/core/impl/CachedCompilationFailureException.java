@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import org.apache.sling.api.scripting.ScriptEvaluationException;
+
+/**
+ * Thrown instead of compiling a script again when its previous compilation failed recently. The exception doesn't fill in its
+ * stack trace, since it's raised from the script cache rather than from the failing compilation, which is logged when it
+ * happens.
+ */
+class CachedCompilationFailureException extends ScriptEvaluationException {
+
+    private static final long serialVersionUID = -1938408618233208371L;
+
+    CachedCompilationFailureException(String scriptName, String message) {
+        super(scriptName, message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.sling.scripting.core.CompiledScriptSerializer;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the compiled scripts of engines whose factory implements {@link CompiledScriptSerializer}, in the bundle data
+ * area. Compiled scripts are stored as content-addressed blobs, named after a hash of the engine name, the engine version,
+ * the script path and the script source, so that a changed script or an updated engine never loads a stale blob and no
+ * separate index has to be maintained. The path is part of the hash because compiled scripts may refer to it, for example in
+ * their error messages.
+ * <p>
+ * The blobs are touched whenever they're loaded; when the store grows over its configured size, the least recently used
+ * blobs are deleted.
+ */
+@Component(service = CompiledScriptStore.class, configurationPid = "org.apache.sling.scripting.core.impl.ScriptCacheImpl")
+public class CompiledScriptStore {
+
+    /**
+     * The default maximum size of the compiled script store, in megabytes. {@code 0} disables the store.
+     */
+    public static final int DEFAULT_COMPILED_STORE_SIZE = 0;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompiledScriptStore.class);
+
+    private static final String DIRECTORY = "compiled-scripts";
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final long maxSize;
+    private final AtomicLong size = new AtomicLong();
+    private final Lock pruneLock = new ReentrantLock();
+
+    @Activate
+    public CompiledScriptStore(final ScriptCacheImplConfiguration configuration, final BundleContext bundleContext) {
+        this.maxSize = Math.max(configuration.org_apache_sling_scripting_cache_compiled__store__size(), 0) * 1024L * 1024L;
+        final File dataDirectory = maxSize > 0 ? bundleContext.getDataFile(DIRECTORY) : null;
+        if (dataDirectory != null && (dataDirectory.isDirectory() || dataDirectory.mkdirs())) {
+            this.directory = dataDirectory;
+            size.set(getBlobs().stream().mapToLong(File::length).sum());
+        } else {
+            this.directory = null;
+        }
+    }
+
+    /**
+     * Tells if the compiled scripts of an engine can be persisted.
+     *
+     * @param scriptEngine the script engine
+     * @return {@code true} if the store is enabled and the factory of the engine implements {@link CompiledScriptSerializer}
+     */
+    boolean supports(final ScriptEngine scriptEngine) {
+        return directory != null && scriptEngine.getFactory() instanceof CompiledScriptSerializer;
+    }
+
+    /**
+     * Loads a persisted compiled script.
+     *
+     * @param scriptEngine the engine to bind the compiled script to
+     * @param scriptPath   the path of the script
+     * @param source       the source of the script
+     * @return the compiled script, or {@code null} if it wasn't persisted or cannot be deserialized
+     */
+    CompiledScript load(final ScriptEngine scriptEngine, final String scriptPath, final String source) {
+        final File blob = getBlob(scriptEngine.getFactory(), scriptPath, source);
+        if (!blob.isFile()) {
+            return null;
+        }
+        final CompiledScriptSerializer serializer = (CompiledScriptSerializer) scriptEngine.getFactory();
+        try (InputStream inputStream = Files.newInputStream(blob.toPath())) {
+            final CompiledScript compiledScript = serializer.deserialize(scriptEngine, inputStream);
+            if (!blob.setLastModified(System.currentTimeMillis())) {
+                LOGGER.debug("Unable to touch compiled script {}.", blob);
+            }
+            return compiledScript;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to load compiled script {}, it will be compiled again.", blob, e);
+            delete(blob);
+            return null;
+        }
+    }
+
+    /**
+     * Persists a compiled script.
+     *
+     * @param scriptEngine   the engine that compiled the script
+     * @param scriptPath     the path of the script
+     * @param source         the source of the script
+     * @param compiledScript the compiled script
+     */
+    void store(
+            final ScriptEngine scriptEngine,
+            final String scriptPath,
+            final String source,
+            final CompiledScript compiledScript) {
+        final File blob = getBlob(scriptEngine.getFactory(), scriptPath, source);
+        final File parent = blob.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            LOGGER.warn("Unable to create directory {}.", parent);
+            return;
+        }
+        final CompiledScriptSerializer serializer = (CompiledScriptSerializer) scriptEngine.getFactory();
+        final File temporary = new File(parent, blob.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(temporary.toPath())) {
+                serializer.serialize(compiledScript, outputStream);
+            }
+            final long length = temporary.length();
+            final long previousLength = blob.length();
+            Files.move(
+                    temporary.toPath(),
+                    blob.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            if (size.addAndGet(length - previousLength) > maxSize) {
+                prune();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Unable to persist the compiled script {}.", blob, e);
+            delete(temporary);
+        }
+    }
+
+    /**
+     * Returns the size of the persisted compiled scripts, in bytes.
+     */
+    long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Deletes the least recently used blobs until the store uses at most three quarters of its maximum size.
+     */
+    private void prune() {
+        if (!pruneLock.tryLock()) {
+            return;
+        }
+        try {
+            final List<File> blobs = getBlobs();
+            blobs.sort(Comparator.comparingLong(File::lastModified));
+            final long target = maxSize / 4 * 3;
+            for (final File blob : blobs) {
+                if (size.get() <= target) {
+                    break;
+                }
+                delete(blob);
+            }
+        } finally {
+            pruneLock.unlock();
+        }
+    }
+
+    private void delete(final File file) {
+        final long length = file.length();
+        try {
+            if (Files.deleteIfExists(file.toPath()) && !file.getName().endsWith(".tmp")) {
+                size.addAndGet(-length);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Unable to delete {}.", file, e);
+        }
+    }
+
+    private List<File> getBlobs() {
+        final List<File> blobs = new ArrayList<>();
+        final File[] buckets = directory.listFiles(File::isDirectory);
+        if (buckets != null) {
+            for (final File bucket : buckets) {
+                final File[] files = bucket.listFiles((dir, name) -> !name.endsWith(".tmp"));
+                if (files != null) {
+                    blobs.addAll(Arrays.asList(files));
+                }
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Returns the blob of a compiled script, spread over 256 directories by the first byte of its hash.
+     */
+    private File getBlob(final ScriptEngineFactory factory, final String scriptPath, final String source) {
+        final String hash = hash(factory.getEngineName(), factory.getEngineVersion(), scriptPath, source);
+        return new File(new File(directory, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    static String hash(final String... parts) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            for (final String part : parts) {
+                digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            final byte[] bytes = digest.digest();
+            final char[] hex = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not supported.", e);
+        }
+    }
+}
@@ -50,6 +50,7 @@ import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletRequest;
 import jakarta.servlet.ServletResponse;
+import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingJakartaHttpServletRequest;
 import org.apache.sling.api.SlingJakartaHttpServletResponse;
@@ -107,6 +108,11 @@ class DefaultSlingScript implements SlingScript, Servlet, ServletConfig {
     private static final Set<String> PROTECTED_KEYS = new HashSet<>(Arrays.asList(
             REQUEST, RESPONSE, JAKARTA_REQUEST, JAKARTA_RESPONSE, READER, SLING, RESOURCE, RESOLVER, OUT, LOG));
 
+    /**
+     * The prefix of the names the arguments of a method call are bound to, for engines that don't invoke methods directly.
+     */
+    private static final String METHOD_ARGUMENT_PREFIX = "slingMethodArgument";
+
     private static final Integer[] SCOPES = {
         SlingScriptConstants.SLING_SCOPE, Integer.valueOf(100), Integer.valueOf(200)
     };
@@ -352,23 +358,46 @@ class DefaultSlingScript implements SlingScript, Servlet, ServletConfig {
                     SlingScriptConstants.SLING_SCOPE);
 
             reader = getScriptReader();
+            String cacheKey = this.scriptName;
             if (method != null && !(this.scriptEngine instanceof Invocable)) {
-                reader = getWrapperReader(reader, method, args);
+                // the arguments are bound rather than inlined, so that all the calls of a method share a cache entry
+                for (int i = 0; i < args.length; i++) {
+                    ctx.setAttribute(
+                            METHOD_ARGUMENT_PREFIX + i, String.valueOf(args[i]), ScriptContext.ENGINE_SCOPE);
+                }
+                final String methodCall = getMethodCall(method, args.length);
+                reader = getWrapperReader(reader, methodCall);
+                // the method call is compiled together with the script, so it needs its own cache entry
+                cacheKey = ScriptCacheImpl.getVariantKey(this.scriptName, methodCall);
             }
 
             // evaluate the script
             final Object result;
-            if (method == null && this.scriptEngine instanceof Compilable) {
-                CachedScript cachedScript = scriptCache.getScript(scriptName);
-                if (cachedScript == null) {
-                    ScriptNameAwareReader snReader = new ScriptNameAwareReader(reader, scriptName);
-                    CompiledScript compiledScript = ((Compilable) scriptEngine).compile(snReader);
-                    cachedScript = new CachedScriptImpl(scriptName, compiledScript);
-                    scriptCache.putScript(cachedScript);
-                    LOGGER.debug("Adding {} to the script cache.", scriptName);
-                } else {
-                    LOGGER.debug("Script {} was already cached.", scriptName);
+            CachedScript cachedScript = null;
+            // a cached script is evaluated on the engine which compiled it, so a script whose method is invoked on
+            // the engine of this script has to be interpreted by that engine
+            final boolean cacheable = this.scriptEngine instanceof Compilable
+                    && (method == null || !(this.scriptEngine instanceof Invocable));
+            if (cacheable && scriptCache instanceof ScriptCacheImpl) {
+                final ScriptCacheImpl scriptCacheImpl = (ScriptCacheImpl) scriptCache;
+                // only reuse a script compiled by the engine of this script
+                cachedScript = scriptCacheImpl.getScript(cacheKey, this.scriptEngine.getFactory());
+                if (cachedScript == null && scriptCacheImpl.admit(cacheKey)) {
+                    // the source is read once: one copy is compiled, possibly on another thread, while another copy is
+                    // interpreted if the compiled script isn't available in time
+                    final String source;
+                    try (Reader scriptReader = reader) {
+                        source = IOUtils.toString(scriptReader);
+                    }
+                    reader = new StringReader(source);
+                    cachedScript = getOrCompile(scriptCacheImpl, cacheKey, source);
+                } else if (cachedScript == null) {
+                    LOGGER.debug("Interpreting {}, which is not evaluated often enough to be cached.", cacheKey);
                 }
+            } else if (cacheable) {
+                cachedScript = getCachedScript(cacheKey, reader);
+            }
+            if (cachedScript != null) {
                 result = cachedScript.getCompiledScript().eval(ctx);
             } else {
                 result = scriptEngine.eval(reader, ctx);
@@ -377,8 +406,7 @@ class DefaultSlingScript implements SlingScript, Servlet, ServletConfig {
             // call method - if supplied and script engine supports direct invocation
             if (method != null && (this.scriptEngine instanceof Invocable)) {
                 try {
-                    ((Invocable) scriptEngine)
-                            .invokeFunction(method, Arrays.asList(args).toArray());
+                    ((Invocable) this.scriptEngine).invokeFunction(method, Arrays.asList(args).toArray());
                 } catch (NoSuchMethodException e) {
                     throw new ScriptEvaluationException(
                             this.scriptName, "Method " + method + " not found in script.", e);
@@ -533,22 +561,192 @@ class DefaultSlingScript implements SlingScript, Servlet, ServletConfig {
     // ---------- internal -----------------------------------------------------
 
     private Reader getScriptReader() throws IOException {
+        if (!(this.scriptEngine instanceof Compilable) && scriptCache instanceof ScriptCacheImpl) {
+            final ScriptCacheImpl scriptCacheImpl = (ScriptCacheImpl) scriptCache;
+            final long modificationTime =
+                    this.scriptResource.getResourceMetadata().getModificationTime();
+            // without a modification time a cached source cannot be validated
+            if (scriptCacheImpl.isSourceCacheEnabled() && modificationTime > 0) {
+                String source = scriptCacheImpl.getSource(this.scriptName, modificationTime);
+                if (source == null) {
+                    try (Reader reader = readScript()) {
+                        source = IOUtils.toString(reader);
+                    }
+                    scriptCacheImpl.putSource(this.scriptName, modificationTime, source);
+                }
+                return new StringReader(source);
+            }
+        }
+        return readScript();
+    }
+
+    private Reader readScript() throws IOException {
         // access the value as a stream and return a buffered reader
         // converting the stream data using UTF-8 encoding, which is
         // the default encoding used
         return new BufferedReader(new InputStreamReader(new LazyInputStream(this.scriptResource), this.scriptEncoding));
     }
 
-    private Reader getWrapperReader(final Reader scriptReader, final String method, final Object... args) {
+    /**
+     * Opens a reader for the source of a script resource outside of a request, using the character encoding of the resource
+     * or UTF-8 if none is set.
+     *
+     * @param resource the script resource
+     * @return a reader for the source of the script
+     */
+    static Reader openScript(final Resource resource) throws IOException {
+        String encoding = resource.getResourceMetadata().getCharacterEncoding();
+        if (encoding == null) {
+            encoding = "UTF-8";
+        }
+        return new BufferedReader(new InputStreamReader(new LazyInputStream(resource), encoding));
+    }
+
+    /**
+     * Compiles and caches this script, which isn't cached yet.
+     *
+     * @param scriptCacheImpl the script cache
+     * @param cacheKey        the key of the script in the cache
+     * @param source          the source of the script
+     * @return the cached script or {@code null} if the script should be interpreted instead, because it's compiled in the
+     *         background or its compilation didn't complete in time
+     */
+    private CachedScript getOrCompile(
+            final ScriptCacheImpl scriptCacheImpl, final String cacheKey, final String source) throws ScriptException {
+        final long contentLength = this.scriptResource.getResourceMetadata().getContentLength();
+        final Thread requestThread = Thread.currentThread();
+        final ScriptCacheImpl.ScriptCompiler compiler = () -> {
+            LOGGER.debug("Adding {} to the script cache.", cacheKey);
+            // a compilation scheduled on another thread may still run while this script's engine interprets the script, so
+            // it gets a separate engine; the engine is only created once the compilation is known to be needed
+            final ScriptEngine engine = Thread.currentThread() != requestThread
+                    ? this.scriptEngine.getFactory().getScriptEngine()
+                    : this.scriptEngine;
+            final ScriptEngine compilingEngine = engine instanceof Compilable ? engine : this.scriptEngine;
+            return compile(scriptCacheImpl, cacheKey, compilingEngine, new StringReader(source), contentLength);
+        };
+        return scriptCacheImpl.isBackgroundCompilationEnabled()
+                ? scriptCacheImpl.getOrCompileInBackground(cacheKey, compiler)
+                : scriptCacheImpl.getOrCompile(cacheKey, compiler);
+    }
+
+    /**
+     * Returns the compiled version of this script from a script cache other than the {@link ScriptCacheImpl}, compiling and
+     * caching it if needed.
+     *
+     * @param cacheKey the key of the script in the cache
+     * @param reader   the reader used to compile the script
+     * @return the cached script
+     */
+    private CachedScript getCachedScript(final String cacheKey, final Reader reader) throws ScriptException {
+        final long contentLength = this.scriptResource.getResourceMetadata().getContentLength();
+        CachedScript cachedScript = scriptCache.getScript(cacheKey);
+        if (cachedScript == null) {
+            cachedScript = compile(null, cacheKey, this.scriptEngine, reader, contentLength);
+            scriptCache.putScript(cachedScript);
+            LOGGER.debug("Adding {} to the script cache.", cacheKey);
+        } else {
+            LOGGER.debug("Script {} was already cached.", cacheKey);
+        }
+        return cachedScript;
+    }
+
+    /**
+     * Compiles a script, loading it from the compiled script store or sharing it with the scripts of the same source if the
+     * script cache is configured to, and recording the dependencies the engine registers. Every compilation of a script for
+     * the script cache, whether for a request, a recompilation or a warm-up, goes through this method.
+     *
+     * @param scriptCacheImpl the script cache providing the store, the shared scripts and the dependency graph, or
+     *                        {@code null} for a plain compilation
+     * @param cacheKey        the key of the script in the cache
+     * @param engine          the engine compiling the script
+     * @param reader          the reader for the source of the script
+     * @param contentLength   the length of the script resource, to estimate the weight of the compiled script
+     * @return the compiled script
+     */
+    static CachedScript compile(
+            final ScriptCacheImpl scriptCacheImpl,
+            final String cacheKey,
+            final ScriptEngine engine,
+            final Reader reader,
+            final long contentLength)
+            throws ScriptException {
+        final String scriptName = ScriptCacheImpl.getScriptPath(cacheKey);
+        final CompiledScriptStore store = scriptCacheImpl != null ? scriptCacheImpl.getCompiledScriptStore() : null;
+        final SharedCompiledScripts sharedScripts =
+                scriptCacheImpl != null ? scriptCacheImpl.getSharedCompiledScripts() : null;
+        final ScriptDependencyGraph dependencyGraph =
+                scriptCacheImpl != null ? scriptCacheImpl.getScriptDependencyGraph() : null;
+        final boolean persist = store != null && store.supports(engine);
+        final boolean share = sharedScripts != null && sharedScripts.isEnabled();
+        final CompiledScript compiledScript;
+        if (persist || share) {
+            // the source is needed to look up the persisted or shared compiled script
+            final String source;
+            try {
+                source = IOUtils.toString(reader);
+            } catch (IOException e) {
+                throw new ScriptEvaluationException(scriptName, "Unable to read the script.", e);
+            }
+            final SharedCompiledScripts.Compiler compiler = () -> {
+                final CompiledScript persistedScript = persist ? store.load(engine, scriptName, source) : null;
+                if (persistedScript != null) {
+                    return persistedScript;
+                }
+                final CompiledScript compiled =
+                        compile(cacheKey, (Compilable) engine, new StringReader(source), dependencyGraph);
+                if (persist) {
+                    store.store(engine, scriptName, source, compiled);
+                }
+                return compiled;
+            };
+            compiledScript = share
+                    ? sharedScripts.getOrCompile(engine, source, compiler)
+                    : compiler.compile();
+        } else {
+            compiledScript = compile(cacheKey, (Compilable) engine, reader, dependencyGraph);
+        }
+        final long weight = CachedScriptImpl.estimateWeight(contentLength, engine.getFactory());
+        return new CachedScriptImpl(cacheKey, compiledScript, weight);
+    }
+
+    /**
+     * Has the engine compile a script, recording the dependencies it registers. A script loaded from the compiled script
+     * store or shared with another path isn't compiled, so it keeps the dependencies of its previous compilation.
+     */
+    private static CompiledScript compile(
+            final String cacheKey,
+            final Compilable compilable,
+            final Reader reader,
+            final ScriptDependencyGraph dependencyGraph)
+            throws ScriptException {
+        final String scriptName = ScriptCacheImpl.getScriptPath(cacheKey);
+        if (dependencyGraph == null) {
+            return compilable.compile(new ScriptNameAwareReader(reader, scriptName));
+        }
+        // scripts compiled while this one compiles, for example imported templates, become its dependencies
+        dependencyGraph.startCompilation(scriptName);
+        try {
+            return compilable.compile(new ScriptNameAwareReader(reader, scriptName));
+        } finally {
+            dependencyGraph.endCompilation();
+        }
+    }
+
+    private static String getMethodCall(final String method, final int argumentCount) {
         final StringBuilder buffer = new StringBuilder(method);
         buffer.append('(');
-        for (Object o : args) {
-            buffer.append('"');
-            buffer.append(o);
-            buffer.append('"');
+        for (int i = 0; i < argumentCount; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(METHOD_ARGUMENT_PREFIX).append(i);
         }
         buffer.append(')');
-        final String msg = buffer.toString();
+        return buffer.toString();
+    }
+
+    private Reader getWrapperReader(final Reader scriptReader, final String msg) {
         return new Reader() {
 
             protected boolean doAppend = false;
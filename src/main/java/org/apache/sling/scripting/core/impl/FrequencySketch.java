@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A count-min sketch estimating how often keys were seen recently, in constant memory. The estimate of a key can only be
+ * higher than its real count, never lower. All counters are halved after a number of increments proportional to the width
+ * of the sketch, so that keys which stopped being seen eventually cool down.
+ * <p>
+ * Counters are updated without synchronisation; a lost increment under contention only makes the estimate slightly less
+ * accurate.
+ */
+final class FrequencySketch {
+
+    static final int MAX_FREQUENCY = 15;
+
+    private static final int DEPTH = 4;
+
+    private static final int[] SEEDS = {0x97cb3127, 0x8cb4b3ad, 0x3f3b1c8d, 0x6c8e9cf5};
+
+    private final int[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * @param expectedKeys the number of distinct keys expected to be tracked
+     */
+    FrequencySketch(final int expectedKeys) {
+        final int width = Integer.highestOneBit(Math.max(Math.min(expectedKeys, 1 << 20), 16) * 2 - 1);
+        this.counters = new int[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = width * 10;
+    }
+
+    /**
+     * Records an occurrence of a key.
+     *
+     * @param key the key
+     * @return the estimated frequency of the key, including this occurrence
+     */
+    int increment(final String key) {
+        final int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            final int index = index(hash, row);
+            int count = counters[row][index];
+            if (count < MAX_FREQUENCY) {
+                counters[row][index] = ++count;
+            }
+            frequency = Math.min(frequency, count);
+        }
+        if (additions.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+        return frequency;
+    }
+
+    /**
+     * Returns the estimated frequency of a key.
+     *
+     * @param key the key
+     * @return the estimated frequency
+     */
+    int frequency(final String key) {
+        final int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counters[row][index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private synchronized void reset() {
+        if (additions.get() < sampleSize) {
+            // another thread already aged the counters
+            return;
+        }
+        for (final int[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = row[i] >>> 1;
+            }
+        }
+        additions.set(0);
+    }
+
+    private int index(final int hash, final int row) {
+        return spread(hash * SEEDS[row]) & mask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -24,16 +24,23 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.felix.webconsole.AbstractWebConsolePlugin;
 import org.apache.felix.webconsole.WebConsoleConstants;
+import org.apache.sling.api.request.ResponseUtil;
 import org.apache.sling.scripting.api.ScriptCache;
 import org.osgi.framework.Constants;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 
 @Component(
         property = {
@@ -55,10 +62,21 @@ public class ScriptCacheConsolePlugin extends AbstractWebConsolePlugin {
     private static final String SCRIPTCACHE_JS = "scriptcache.js";
     private static final String CTYPE_JAVASCRIPT = "application/javascript";
     private static final String POST_SCRIPT = "script";
+    private static final String POST_MANIFEST = "manifest";
+    private static final String MANIFEST = CONSOLE_LABEL + "/" + ScriptCacheManifest.FILE_NAME;
 
     @Reference
     private ScriptCache scriptCache;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    volatile ScriptCacheWarmUp scriptCacheWarmUp;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile ScriptCompilationScheduler compilationScheduler;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile ScriptCacheInvalidator scriptCacheInvalidator;
+
     @Override
     public String getTitle() {
         return CONSOLE_TITLE;
@@ -82,6 +100,66 @@ public class ScriptCacheConsolePlugin extends AbstractWebConsolePlugin {
                     .append(SCRIPTCACHE_JS)
                     .append("'></script>");
             sb.append("<div id='cached-scripts' class='ui-widget statline'>");
+            sb.append("<p class='ui-widget-header'>Statistics</p>");
+            sb.append("<table class='nicetable ui-widget-content'>");
+            appendStatistic(sb, 0, "Cached scripts", scripts.size());
+            appendStatistic(sb, 1, "Estimated memory (bytes)", scriptCacheImpl.getWeight());
+            appendStatistic(sb, 2, "Scripts in the strong tier", scriptCacheImpl.getStrongTierCount());
+            appendStatistic(sb, 3, "Scripts cleared by the garbage collector", scriptCacheImpl.getGarbageCollectedCount());
+            appendStatistic(sb, 4, "Cached script sources", scriptCacheImpl.getCachedSources().size());
+            appendStatistic(
+                    sb,
+                    5,
+                    "Scripts with a recent compilation failure",
+                    scriptCacheImpl.getCompilationFailures().size());
+            appendStatistic(
+                    sb,
+                    6,
+                    "Evaluations interpreted before admission to the cache",
+                    scriptCacheImpl.getRejectedAdmissionCount());
+            appendStatistic(sb, 7, "Script generation", scriptCacheImpl.getGeneration());
+            appendStatistic(
+                    sb, 8, "Scripts removed after their engine was replaced", scriptCacheImpl.getReplacedEngineCount());
+            final SharedCompiledScripts sharedScripts = scriptCacheImpl.getSharedCompiledScripts();
+            if (sharedScripts != null && sharedScripts.isEnabled()) {
+                appendStatistic(sb, 9, "Distinct shared compiled scripts", sharedScripts.getDistinctCount());
+                appendStatistic(sb, 10, "Compilations saved by content sharing", sharedScripts.getSharedCount());
+                appendStatistic(
+                        sb, 11, "Estimated memory saved by content sharing (bytes)", sharedScripts.getSavedWeight());
+            }
+            sb.append("</table>");
+            final ScriptCompilationScheduler scheduler = compilationScheduler;
+            if (scheduler != null) {
+                sb.append("<p class='ui-widget-header'>Compilations</p>");
+                sb.append("<table class='nicetable ui-widget-content'>");
+                appendStatistic(sb, 0, "Running compilations", scheduler.getActiveCount());
+                appendStatistic(sb, 1, "Waiting compilations", scheduler.getQueuedCount());
+                appendStatistic(sb, 2, "Compilations that didn't complete in time", scheduler.getTimedOutCount());
+                appendStatistic(sb, 3, "Compilations rejected by a full queue", scheduler.getRejectedCount());
+                sb.append("</table>");
+            }
+            final ScriptCacheInvalidator invalidator = scriptCacheInvalidator;
+            if (invalidator != null) {
+                sb.append("<p class='ui-widget-header'>Invalidations</p>");
+                sb.append("<table class='nicetable ui-widget-content'>");
+                appendStatistic(sb, 0, "Scripts waiting to be invalidated", invalidator.getPendingInvalidationCount());
+                appendStatistic(sb, 1, "Lag of the last invalidation (ms)", invalidator.getInvalidationLag());
+                appendStatistic(sb, 2, "Invalidations of a whole subtree", invalidator.getOverflowCount());
+                sb.append("</table>");
+            }
+            final ScriptCacheWarmUp warmUp = scriptCacheWarmUp;
+            if (warmUp != null && warmUp.getState() != ScriptCacheWarmUp.State.DISABLED) {
+                sb.append("<p class='ui-widget-header'>Warm-up (")
+                        .append(warmUp.getState().name().toLowerCase(Locale.ENGLISH))
+                        .append(")</p>");
+                sb.append("<table class='nicetable ui-widget-content'>");
+                appendStatistic(sb, 0, "Discovered scripts", warmUp.getDiscoveredCount());
+                appendStatistic(sb, 1, "Compiled scripts", warmUp.getCompiledCount());
+                appendStatistic(sb, 2, "Scripts that failed to compile", warmUp.getFailedCount());
+                appendStatistic(sb, 3, "Scripts that were not cached", warmUp.getSkippedCount());
+                appendStatistic(sb, 4, "Duration of the last warm-up (ms)", warmUp.getDuration());
+                sb.append("</table>");
+            }
             if (!scripts.isEmpty()) {
                 Collections.sort(scripts);
                 sb.append("<p class='ui-widget-header'>Cached Scripts</p>");
@@ -93,9 +171,9 @@ public class ScriptCacheConsolePlugin extends AbstractWebConsolePlugin {
                             .append(" ui-state-default'><td>")
                             .append(++i)
                             .append("<td><code>")
-                            .append(script)
+                            .append(ResponseUtil.escapeXml(getDisplayKey(script)))
                             .append("</code></td><td><button type='button' " + "data-script='")
-                            .append(script)
+                            .append(ResponseUtil.escapeXml(ScriptCacheImpl.getScriptPath(script)))
                             .append("'>Remove</button></td></tr>");
                 }
                 sb.append("<tr><td colspan='3'><button type='button' id='clearcache'>Clear Cache</button></td></tr>");
@@ -104,11 +182,59 @@ public class ScriptCacheConsolePlugin extends AbstractWebConsolePlugin {
             } else {
                 sb.append("<p class='ui-state-highlight'>The Script Cache doesn't contain any scripts.</p>");
             }
+            final ScriptDependencyGraph dependencyGraph = scriptCacheImpl.getScriptDependencyGraph();
+            final Map<String, Set<String>> dependencies =
+                    dependencyGraph != null ? dependencyGraph.getGraph() : Collections.emptyMap();
+            if (!dependencies.isEmpty()) {
+                sb.append("<p class='ui-widget-header'>Script Dependencies</p>");
+                sb.append("<table class='nicetable ui-widget-content'>");
+                int i = 0;
+                for (final Map.Entry<String, Set<String>> dependency : dependencies.entrySet()) {
+                    sb.append("<tr class='")
+                            .append(i++ % 2 == 0 ? "even" : "odd")
+                            .append(" ui-state-default'><td><code>")
+                            .append(ResponseUtil.escapeXml(getDisplayKey(dependency.getKey())))
+                            .append("</code></td><td>depends on</td><td><code>")
+                            .append(ResponseUtil.escapeXml(String.join(", ", dependency.getValue())))
+                            .append("</code></td></tr>");
+                }
+                sb.append("</table>");
+            }
             sb.append("</div>");
+            if (warmUp != null && warmUp.isManifestEnabled()) {
+                sb.append("<div class='ui-widget statline'>");
+                sb.append("<p class='ui-widget-header'>Manifest</p>");
+                sb.append("<form method='post' class='ui-widget-content'>");
+                sb.append("<p><a href='")
+                        .append(MANIFEST)
+                        .append("'>Export the manifest of the hottest scripts</a></p>");
+                sb.append("<p><textarea name='")
+                        .append(POST_MANIFEST)
+                        .append("' rows='10' cols='100'></textarea></p>");
+                sb.append("<p><input type='submit' value='Import Manifest'></p>");
+                sb.append("</form></div>");
+            }
             httpServletResponse.getWriter().write(sb.toString());
         }
     }
 
+    /**
+     * Returns a printable form of a cache key, showing the qualifier of a variant after a {@code #}.
+     */
+    private static String getDisplayKey(String key) {
+        return key.replace(ScriptCacheImpl.VARIANT_SEPARATOR, '#');
+    }
+
+    private static void appendStatistic(StringBuilder sb, int row, String name, long value) {
+        sb.append("<tr class='")
+                .append(row % 2 == 0 ? "even" : "odd")
+                .append(" ui-state-default'><td>")
+                .append(name)
+                .append("</td><td>")
+                .append(value)
+                .append("</td></tr>");
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
@@ -116,6 +242,15 @@ public class ScriptCacheConsolePlugin extends AbstractWebConsolePlugin {
             response.setContentType(CTYPE_JAVASCRIPT);
             IOUtils.copy(
                     getClass().getResourceAsStream("/" + RESOURCES + "/" + SCRIPTCACHE_JS), response.getOutputStream());
+        } else if (request.getRequestURI().endsWith(MANIFEST)) {
+            final ScriptCacheWarmUp warmUp = scriptCacheWarmUp;
+            if (warmUp == null || !warmUp.isManifestEnabled()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            response.setContentType("text/plain");
+            response.setCharacterEncoding("UTF-8");
+            warmUp.exportManifest(response.getWriter());
         } else {
             super.doGet(request, response);
         }
@@ -123,6 +258,22 @@ public class ScriptCacheConsolePlugin extends AbstractWebConsolePlugin {
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String manifest = req.getParameter(POST_MANIFEST);
+        if (manifest != null) {
+            final ScriptCacheWarmUp warmUp = scriptCacheWarmUp;
+            if (warmUp == null || !warmUp.isManifestEnabled()) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            try {
+                warmUp.importManifest(new StringReader(manifest));
+            } catch (IOException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            resp.sendRedirect(req.getRequestURI());
+            return;
+        }
         String script = req.getParameter(POST_SCRIPT);
         if (script != null && !script.isEmpty()) {
             if ("all".equals(script)) {
@@ -18,20 +18,53 @@
  */
 package org.apache.sling.scripting.core.impl;
 
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.sling.scripting.api.CachedScript;
 import org.apache.sling.scripting.api.ScriptCache;
-import org.apache.sling.scripting.core.impl.helper.CachingMap;
+import org.apache.sling.scripting.core.impl.helper.CachedScriptImpl;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.metatype.annotations.Designate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +76,37 @@ import org.slf4j.LoggerFactory;
 /**
  * The {@code ScriptCache} stores information about {@link CompiledScript} instances evaluated by various {@link ScriptEngine}s that
  * implement the {@link Compilable} interface.
+ * <p>
+ * Reads are lock-free and don't write to the entries they read: accesses are recorded in an {@link AccessBuffer} and applied
+ * to the entries in batches. Once its capacity or its memory budget is exceeded, the cache evicts the entry the configured
+ * {@link EvictionPolicy} ranks lowest among a small sample of entries, until it's back within its bounds; the script whose
+ * addition triggered the eviction is never one of the victims. Only one thread performs an eviction pass at a time, while
+ * other writers just add their entries. The memory used by a script is estimated by its {@link Entry#getWeight()}.
+ * <p>
+ * Cached scripts are softly referenced, so that they can be reclaimed under memory pressure. Optionally, a bounded number of the
+ * hottest scripts is additionally kept in a strong tier, which protects them from being cleared by the garbage collector.
+ * <p>
+ * Besides compiled scripts, the cache can also keep decoded script sources for script engines that don't support
+ * compilation, so that such scripts don't have to be read from the repository on every evaluation. The source cache is
+ * disabled by default, and bounded both by its number of sources and by the memory they use.
+ * <p>
+ * Compilation failures are remembered for a configurable time, during which evaluating the broken script fails fast with a
+ * {@link CachedCompilationFailureException} instead of compiling the script again. Removing a script from the cache also
+ * forgets its compilation failure.
+ * <p>
+ * Instead of being removed, a changed script can be {@link #markStale(String) marked as stale}: its previous version keeps being
+ * served for a bounded time, while it's being recompiled in the background.
+ * <p>
+ * With an admission threshold greater than {@code 1}, a script is only {@link #admit(String) admitted} to the cache once a
+ * {@link FrequencySketch} estimates that it was evaluated at least that many times recently; until then, it's interpreted
+ * without being compiled, so that scripts which are only evaluated once don't take compilation time and cache capacity.
+ * <p>
+ * Scripts are compiled on the {@link ScriptCompilationScheduler}, hottest first. With background compilation enabled, a
+ * script that's not cached yet is {@link #getOrCompileInBackground(String, ScriptCompiler) compiled in the background} while
+ * the requests evaluating it interpret it, so that no request waits for the compilation of a large script.
+ * <p>
+ * Scripts changed together, for example by a package installation, can be recompiled into a new generation that
+ * {@link #swapGeneration(Map, Set) replaces} the previous versions at once.
  */
 public class ScriptCacheImpl implements ScriptCache {
 
@@ -50,86 +114,1450 @@ public class ScriptCacheImpl implements ScriptCache {
 
     public static final int DEFAULT_CACHE_SIZE = 65536;
 
-    private final Map<String, SoftReference<CachedScript>> internalMap;
+    public static final String DEFAULT_EVICTION_POLICY = "lru";
+
+    /**
+     * The default memory budget in megabytes; {@code 0} means that the cache is only bounded by its size.
+     */
+    public static final int DEFAULT_MAX_MEMORY = 0;
+
+    /**
+     * The weight assumed for cached scripts whose size cannot be estimated.
+     */
+    static final long DEFAULT_ENTRY_WEIGHT = 8192;
+
+    /**
+     * The default number of scripts kept in the strong tier; {@code 0} means that all scripts are only softly referenced.
+     */
+    public static final int DEFAULT_STRONG_TIER_SIZE = 0;
+
+    /**
+     * The default number of decoded script sources kept for script engines that don't support compilation; {@code 0} disables
+     * the source cache.
+     */
+    public static final int DEFAULT_SOURCE_CACHE_SIZE = 0;
+
+    /**
+     * The default maximum memory, in megabytes, used by the cached script sources.
+     */
+    public static final int DEFAULT_SOURCE_CACHE_MAX_MEMORY = 16;
+
+    /**
+     * The default number of seconds during which a compilation failure is remembered.
+     */
+    public static final int DEFAULT_FAILURE_TTL = 10;
+
+    /**
+     * The default number of seconds during which a changed script can still be served while it's recompiled in the background.
+     */
+    public static final int DEFAULT_MAX_STALENESS = 10;
+
+    /**
+     * The default number of evaluations after which a script is compiled and cached; {@code 1} admits every script.
+     */
+    public static final int DEFAULT_ADMISSION_THRESHOLD = 1;
+
+    /**
+     * Separates the path of a script from the qualifier of a variant of that script in the cache keys. Resource paths can't
+     * contain the NUL character, so that the key of a variant never collides with the path of another script.
+     */
+    static final char VARIANT_SEPARATOR = '\u0000';
+
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024L;
+
+    /**
+     * The access frequency, which counts the caching of a script as its first access, from which a script can be promoted to the
+     * strong tier.
+     */
+    private static final int PROMOTION_FREQUENCY = 3;
+
+    /**
+     * The minimum interval between two rebalancing passes of a full strong tier, in milliseconds.
+     */
+    private static final long REBALANCE_INTERVAL = 1000;
+
+    /**
+     * The number of stripes of the invalidation epochs; a power of two.
+     */
+    private static final int INVALIDATION_STRIPES = 256;
+
+    /**
+     * The number of entries compared to select each victim of an eviction.
+     */
+    static final int EVICTION_SAMPLE_SIZE = 16;
+
+    /**
+     * The number of recorded accesses, per cached script the cache can hold, after which the frequencies are halved.
+     */
+    private static final int AGING_PERIOD = 10;
+
+    /**
+     * Compiles a script that's not yet available in the cache.
+     */
+    @FunctionalInterface
+    interface ScriptCompiler {
+        CachedScript compile() throws ScriptException;
+    }
+
+    /**
+     * The strategy used to select the entries that are evicted when the cache grows over its capacity.
+     */
+    enum EvictionPolicy {
+        /**
+         * Evicts the least recently used scripts first.
+         */
+        LRU(Comparator.comparingLong(Entry::getLastAccess)),
+        /**
+         * Evicts the least frequently used scripts first; the recency of the last access breaks ties. A script starts with
+         * the frequency at which it was recently evaluated before being cached, and all frequencies are halved periodically,
+         * so that scripts which used to be hot eventually age out.
+         */
+        LFU(Comparator.comparingInt(Entry::getFrequency).thenComparingLong(Entry::getLastAccess));
+
+        private final Comparator<Entry> evictionOrder;
+
+        EvictionPolicy(Comparator<Entry> evictionOrder) {
+            this.evictionOrder = evictionOrder;
+        }
+
+        static EvictionPolicy fromConfiguration(String value) {
+            if (value != null) {
+                for (EvictionPolicy policy : values()) {
+                    if (policy.name().equals(value.trim().toUpperCase(Locale.ENGLISH))) {
+                        return policy;
+                    }
+                }
+            }
+            return LRU;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> internalMap = new ConcurrentHashMap<>();
+
+    /**
+     * A sorted index of the cached paths, used to find all the scripts of a removed subtree without scanning the whole cache.
+     */
+    private final ConcurrentSkipListSet<String> pathIndex = new ConcurrentSkipListSet<>();
+
+    private final Lock evictionLock = new ReentrantLock();
+
+    private final AccessBuffer<Entry> accessBuffer = new AccessBuffer<>();
+
+    /**
+     * Receives the references to the cached scripts cleared by the garbage collector, so that their entries stop counting
+     * towards the capacity and the memory budget of the cache.
+     */
+    private final ReferenceQueue<CachedScript> collected = new ReferenceQueue<>();
+
+    /**
+     * The position of the sampling in the cache, kept between evictions so that all the entries get sampled in turn; guarded
+     * by the {@link #evictionLock}.
+     */
+    private Iterator<Map.Entry<String, Entry>> evictionHand;
+
+    /**
+     * The number of accesses applied since the frequencies were last halved; only updated while draining the
+     * {@link #accessBuffer}.
+     */
+    private int agingCount;
+
+    /**
+     * The number of times the frequencies were halved. Each entry catches up with the halvings it missed when it's read or
+     * accessed, so that aging doesn't visit every entry at once.
+     */
+    private final AtomicInteger agingPeriods = new AtomicInteger();
+
+    private final int capacity;
+
+    private final EvictionPolicy evictionPolicy;
+
+    private final ConcurrentHashMap<String, CompletableFuture<CachedScript>> compilations = new ConcurrentHashMap<>();
+
+    private final long compilationWaitTimeout;
+
+    private final long maxWeight;
+
+    private final AtomicLong totalWeight = new AtomicLong();
+
+    private final int strongTierSize;
 
-    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
-    private final Lock readLock = rwl.readLock();
-    private final Lock writeLock = rwl.writeLock();
+    private final AtomicInteger strongTierCount = new AtomicInteger();
+
+    private final AtomicLong garbageCollectedCount = new AtomicLong();
+
+    /**
+     * Rebalances a full strong tier off the request threads; {@code null} if the strong tier is disabled.
+     */
+    private final ScheduledExecutorService rebalanceExecutor;
+
+    private final AtomicBoolean rebalanceScheduled = new AtomicBoolean();
+
+    private final ConcurrentSkipListMap<String, CachedSource> sources = new ConcurrentSkipListMap<>();
+
+    private final int sourceCacheSize;
+
+    private final long maxSourceWeight;
+
+    private final AtomicLong sourceWeight = new AtomicLong();
+
+    private final ConcurrentSkipListMap<String, CompilationFailure> failures = new ConcurrentSkipListMap<>();
+
+    private final long failureTtl;
+
+    private final long maxStaleness;
+
+    private final int admissionThreshold;
+
+    private final FrequencySketch frequencySketch;
+
+    private final AtomicLong rejectedAdmissionCount = new AtomicLong();
+
+    private final AtomicLong replacedEngineCount = new AtomicLong();
+
+    private final boolean backgroundCompilation;
+
+    private volatile Map<String, CachedScript> generationOverlay = Collections.emptyMap();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Counts the invalidations of the scripts, striped by script path, so that a compilation started before its script was
+     * invalidated doesn't cache its outdated result. Invalidations that can affect any script increment the
+     * {@link #globalInvalidationEpoch} instead.
+     */
+    private final AtomicLongArray invalidationEpochs = new AtomicLongArray(INVALIDATION_STRIPES);
+
+    private final AtomicLong globalInvalidationEpoch = new AtomicLong();
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    volatile ScriptCompilationScheduler compilationScheduler;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile CompiledScriptStore compiledScriptStore;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile SharedCompiledScripts sharedCompiledScripts;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    volatile ScriptDependencyGraph scriptDependencyGraph;
 
     @Activate
     public ScriptCacheImpl(final ScriptCacheImplConfiguration configuration) {
-        this.internalMap = new CachingMap<>(configuration.org_apache_sling_scripting_cache_size());
+        this.capacity = configuration.org_apache_sling_scripting_cache_size();
+        this.evictionPolicy =
+                EvictionPolicy.fromConfiguration(configuration.org_apache_sling_scripting_cache_eviction__policy());
+        // the same timeout as for the compilations the ScriptCompilationScheduler runs for the requests
+        this.compilationWaitTimeout = configuration.org_apache_sling_scripting_cache_compilation__timeout();
+        this.maxWeight = Math.max(configuration.org_apache_sling_scripting_cache_max__memory(), 0) * BYTES_PER_MEGABYTE;
+        this.strongTierSize = Math.max(configuration.org_apache_sling_scripting_cache_strong__tier__size(), 0);
+        this.sourceCacheSize = Math.max(configuration.org_apache_sling_scripting_cache_source__size(), 0);
+        this.maxSourceWeight =
+                Math.max(configuration.org_apache_sling_scripting_cache_source__max__memory(), 0) * BYTES_PER_MEGABYTE;
+        this.failureTtl = TimeUnit.SECONDS.toNanos(Math.max(configuration.org_apache_sling_scripting_cache_failure__ttl(), 0));
+        this.maxStaleness =
+                TimeUnit.SECONDS.toNanos(Math.max(configuration.org_apache_sling_scripting_cache_max__staleness(), 0));
+        this.admissionThreshold = Math.min(
+                configuration.org_apache_sling_scripting_cache_admission__threshold(), FrequencySketch.MAX_FREQUENCY);
+        // without admission, the sketch only prioritises compilations, which doesn't need to be as accurate
+        this.frequencySketch = new FrequencySketch(admissionThreshold > 1 ? capacity : Math.min(capacity, 4096));
+        this.backgroundCompilation = configuration.org_apache_sling_scripting_cache_background__compilation();
+        this.rebalanceExecutor = strongTierSize > 0
+                ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    final Thread thread = new Thread(runnable, "sling-script-cache-rebalance");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (rebalanceExecutor != null) {
+            rebalanceExecutor.shutdownNow();
+        }
     }
 
     @Override
     public CachedScript getScript(String scriptPath) {
-        readLock.lock();
-        SoftReference<CachedScript> reference = null;
-        try {
-            reference = internalMap.get(scriptPath);
-        } finally {
-            readLock.unlock();
+        final Map<String, CachedScript> overlay = generationOverlay;
+        if (!overlay.isEmpty()) {
+            final int variantStart = scriptPath.indexOf(VARIANT_SEPARATOR);
+            if (overlay.containsKey(scriptPath)) {
+                return overlay.get(scriptPath);
+            }
+            if (variantStart > 0 && overlay.containsKey(scriptPath.substring(0, variantStart))) {
+                // the variants of a script replaced by the new generation must be compiled again
+                return null;
+            }
+        }
+        final Entry entry = internalMap.get(scriptPath);
+        if (entry == null) {
+            return null;
         }
-        return reference != null ? reference.get() : null;
+        final CachedScript script = entry.get();
+        if (script == null) {
+            // the compiled script was garbage collected; its entry is dropped once its reference is enqueued
+            purgeCollected();
+            return null;
+        }
+        if (entry.isStale() && System.nanoTime() - entry.staleSince > maxStaleness) {
+            // the script was not recompiled in time; let the caller compile it
+            if (removeEntry(scriptPath, entry)) {
+                logger.debug("Script {} exceeded the maximum staleness and was removed from the cache.", scriptPath);
+            }
+            return null;
+        }
+        if (accessBuffer.record(entry)) {
+            drainAccesses();
+        }
+        return script;
     }
 
     @Override
     public void putScript(CachedScript script) {
-        writeLock.lock();
-        try {
-            SoftReference<CachedScript> reference = new SoftReference<>(script);
-            internalMap.put(script.getScriptPath(), reference);
-            logger.debug("Added script {} to script cache.", script.getScriptPath());
-        } finally {
-            writeLock.unlock();
+        // a script starts with its recent evaluations, so that it doesn't rank below scripts cached for longer
+        final int frequency = Math.max(frequencySketch.frequency(script.getScriptPath()), 1);
+        final Entry entry =
+                new Entry(
+                        new ScriptReference(script.getScriptPath(), script, collected),
+                        weigh(script),
+                        frequency,
+                        agingPeriods);
+        totalWeight.addAndGet(entry.weight);
+        final Entry previous = internalMap.put(script.getScriptPath(), entry);
+        pathIndex.add(script.getScriptPath());
+        if (previous != null) {
+            release(previous);
+        }
+        logger.debug("Added script {} to script cache.", script.getScriptPath());
+        if (isOverCapacity(0, 0)) {
+            evict(script.getScriptPath());
         }
     }
 
     @Override
     public void clear() {
-        writeLock.lock();
-        try {
-            internalMap.clear();
-            logger.debug("Cleared script cache.");
-        } finally {
-            writeLock.unlock();
+        globalInvalidationEpoch.incrementAndGet();
+        for (final Map.Entry<String, Entry> entry : internalMap.entrySet()) {
+            removeEntry(entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<String, CachedSource> source : sources.entrySet()) {
+            removeSource(source.getKey(), source.getValue());
         }
+        failures.clear();
+        generationOverlay = Collections.emptyMap();
+        logger.debug("Cleared script cache.");
     }
 
     @Override
     public boolean removeScript(final String scriptPath) {
-        writeLock.lock();
+        invalidate(scriptPath);
+        // the path may be a folder, containing scripts that are being compiled
+        final String folder = scriptPath.concat("/");
+        for (final String key : compilations.keySet()) {
+            if (key.startsWith(folder)) {
+                invalidate(getScriptPath(key));
+            }
+        }
+        boolean result = removeEntry(scriptPath);
+        result |= removeDerivedEntries(scriptPath);
+        for (final Map.Entry<String, CachedSource> source :
+                sources.subMap(scriptPath.concat("/"), scriptPath.concat("0")).entrySet()) {
+            result |= removeSource(source.getKey(), source.getValue());
+        }
+        removeSubtree(failures, scriptPath);
+        if (result) {
+            logger.debug("Removed script {} from script cache.", scriptPath);
+        }
+        // prefix removal, as a folder may hold cached sources as well as compiled scripts
+        for (final String key : getSubtree(scriptPath)) {
+            if (removeEntry(key)) {
+                logger.debug("Detected removal for {} - removed entry {} from the cache.", scriptPath, key);
+                result = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the cached scripts with one of the given extensions, together with their variants and compilation failures, for
+     * example because the script engine handling these extensions changed. Cached sources don't depend on the script engine
+     * and are kept.
+     *
+     * @param extensions the extensions of the scripts to remove
+     * @return the number of removed scripts
+     */
+    int removeScriptsByExtension(final Set<String> extensions) {
+        if (extensions.isEmpty()) {
+            return 0;
+        }
+        globalInvalidationEpoch.incrementAndGet();
+        int removed = 0;
+        for (final String key : getCachedScripts()) {
+            final String extension = getExtension(key);
+            if (extension != null && extensions.contains(extension) && removeEntry(key)) {
+                removed++;
+            }
+        }
+        failures.keySet().removeIf(key -> {
+            final String extension = getExtension(key);
+            return extension != null && extensions.contains(extension);
+        });
+        logger.debug("Removed {} scripts with the extensions {} from the script cache.", removed, extensions);
+        return removed;
+    }
+
+    /**
+     * Returns a cached script, if it was compiled by the engine that would evaluate it now. A script compiled by an engine that
+     * was replaced since, for example by an updated engine bundle, is removed together with its variants, so that it's compiled
+     * again by the current engine.
+     *
+     * @param scriptPath the path of the script
+     * @param factory    the factory of the engine evaluating the script
+     * @return the cached script, or {@code null} if it's not cached or was compiled by another engine
+     */
+    CachedScript getScript(final String scriptPath, final ScriptEngineFactory factory) {
+        final CachedScript script = getScript(scriptPath);
+        final CompiledScript compiledScript = script != null ? script.getCompiledScript() : null;
+        final ScriptEngine scriptEngine = compiledScript != null ? compiledScript.getEngine() : null;
+        if (scriptEngine == null || isSameEngine(scriptEngine.getFactory(), factory)) {
+            return script;
+        }
+        removeScript(scriptPath);
+        replacedEngineCount.incrementAndGet();
+        logger.debug("Script {} was compiled by a replaced script engine, removed it from the cache.", scriptPath);
+        return null;
+    }
+
+    /**
+     * Tells if two script engine factories provide the same engine. Factories are compared by class and engine version rather
+     * than by instance, since the script engine manager creates new factory instances whenever an engine is added or removed,
+     * while a refreshed engine bundle loads new classes.
+     *
+     * @param factory the factory of an engine
+     * @param other   the factory of another engine
+     * @return {@code true} if both factories provide the same engine
+     */
+    static boolean isSameEngine(final ScriptEngineFactory factory, final ScriptEngineFactory other) {
+        if (factory == other) {
+            return true;
+        }
+        return factory != null
+                && other != null
+                && factory.getClass() == other.getClass()
+                && Objects.equals(factory.getEngineVersion(), other.getEngineVersion());
+    }
+
+    /**
+     * Records an evaluation of a script that's not cached and tells if it's evaluated often enough to be compiled and cached.
+     *
+     * @param scriptPath the path of the script
+     * @return {@code true} if the script should be compiled and cached, {@code false} if it should be interpreted
+     */
+    boolean admit(final String scriptPath) {
+        if (frequencySketch.increment(scriptPath) >= admissionThreshold) {
+            return true;
+        }
+        rejectedAdmissionCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Marks a changed script as stale. A stale script is still served by {@link #getScript(String)} until it's replaced through
+     * {@link #putScript(CachedScript)}, for at most the configured maximum staleness. Cached variants, sources and compilation
+     * failures of the script cannot be served stale and are removed.
+     *
+     * @param scriptPath the path of the changed script
+     * @return {@code true} if the script was marked as stale, {@code false} if it's not cached, in which case it's just removed
+     * from the cache
+     */
+    boolean markStale(final String scriptPath) {
+        final Entry entry = internalMap.get(scriptPath);
+        if (maxStaleness <= 0 || entry == null || entry.get() == null) {
+            removeScript(scriptPath);
+            return false;
+        }
+        removeDerivedEntries(scriptPath);
+        entry.markStale();
+        logger.debug("Marked script {} as stale.", scriptPath);
+        return true;
+    }
+
+    /**
+     * Returns a cached script without recording an access to it.
+     *
+     * @param scriptPath the path of the script
+     * @return the cached script, or {@code null} if it's not cached
+     */
+    CachedScript peekScript(final String scriptPath) {
+        final Entry entry = internalMap.get(scriptPath);
+        return entry != null ? entry.get() : null;
+    }
+
+    /**
+     * Replaces a set of scripts at once with a new generation of the scripts. The new generation becomes visible to
+     * {@link #getScript(String)} atomically, so that concurrent readers see either all the old scripts or all the new ones,
+     * never a mix of both; it's then merged into the cache.
+     *
+     * @param compiled the recompiled scripts, mapped to their path
+     * @param removed  the paths of the scripts to remove from the cache
+     */
+    synchronized void swapGeneration(final Map<String, CachedScript> compiled, final Set<String> removed) {
+        final Map<String, CachedScript> overlay = new HashMap<>(compiled);
+        for (final String path : removed) {
+            overlay.put(path, null);
+        }
+        generationOverlay = Collections.unmodifiableMap(overlay);
+        final long current = generation.incrementAndGet();
+        // the overlay keeps serving the new generation while it's merged
+        for (final String path : removed) {
+            removeScript(path);
+        }
+        for (final Map.Entry<String, CachedScript> script : compiled.entrySet()) {
+            removeDerivedEntries(script.getKey());
+            putScript(script.getValue());
+        }
+        generationOverlay = Collections.emptyMap();
+        logger.debug(
+                "Swapped to script generation {} with {} recompiled and {} removed scripts.",
+                current,
+                compiled.size(),
+                removed.size());
+    }
+
+    /**
+     * Returns the number of generations swapped in so far.
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Returns the stale version of a script that's waiting to be recompiled.
+     *
+     * @param scriptPath the path of the script
+     * @return the stale script, or {@code null} if the script is not stale or no longer cached
+     */
+    CachedScript getStaleScript(final String scriptPath) {
+        final Entry entry = internalMap.get(scriptPath);
+        return entry != null && entry.isStale() ? entry.get() : null;
+    }
+
+    /**
+     * Removes the cached variants, source and compilation failure of a script.
+     */
+    private boolean removeDerivedEntries(final String scriptPath) {
+        invalidate(scriptPath);
+        boolean result = false;
+        for (final String key : getVariants(scriptPath)) {
+            result |= removeEntry(key);
+        }
+        final CachedSource source = sources.get(scriptPath);
+        result |= source != null && removeSource(scriptPath, source);
+        failures.remove(scriptPath);
+        failures.subMap(scriptPath + VARIANT_SEPARATOR, scriptPath + (char) (VARIANT_SEPARATOR + 1))
+                .clear();
+        return result;
+    }
+
+    /**
+     * Tells if decoded sources are cached for script engines that don't support compilation.
+     */
+    boolean isSourceCacheEnabled() {
+        return sourceCacheSize > 0;
+    }
+
+    /**
+     * Returns the cached source of a script.
+     *
+     * @param scriptPath       the path of the script
+     * @param modificationTime the current modification time of the script resource
+     * @return the source, or {@code null} if it's not cached or was cached for a different modification time
+     */
+    String getSource(final String scriptPath, final long modificationTime) {
+        final CachedSource cachedSource = sources.get(scriptPath);
+        if (cachedSource == null || cachedSource.modificationTime != modificationTime) {
+            return null;
+        }
+        cachedSource.lastAccess = System.nanoTime();
+        return cachedSource.source;
+    }
+
+    /**
+     * Caches the decoded source of a script.
+     *
+     * @param scriptPath       the path of the script
+     * @param modificationTime the modification time of the script resource the source was read from
+     * @param source           the source
+     */
+    void putSource(final String scriptPath, final long modificationTime, final String source) {
+        final CachedSource cachedSource = new CachedSource(source, modificationTime);
+        if (sourceCacheSize <= 0 || (maxSourceWeight > 0 && cachedSource.getWeight() > maxSourceWeight / 32)) {
+            // a single source doesn't get to displace a large part of the others
+            return;
+        }
+        final CachedSource previous = sources.put(scriptPath, cachedSource);
+        sourceWeight.addAndGet(cachedSource.getWeight() - (previous != null ? previous.getWeight() : 0));
+        if (sources.size() > sourceCacheSize || (maxSourceWeight > 0 && sourceWeight.get() > maxSourceWeight)) {
+            evictSources();
+        }
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by the cached sources.
+     */
+    long getSourceWeight() {
+        return sourceWeight.get();
+    }
+
+    private boolean removeSource(final String scriptPath, final CachedSource source) {
+        if (sources.remove(scriptPath, source)) {
+            sourceWeight.addAndGet(-source.getWeight());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the paths of the scripts whose sources are cached.
+     */
+    List<String> getCachedSources() {
+        return new ArrayList<>(sources.keySet());
+    }
+
+    /**
+     * Returns the cached script for {@code scriptPath}, compiling and caching it if it's not available. Only one thread compiles a
+     * given script at a time; concurrent callers wait for the result of that compilation instead of compiling the script
+     * themselves.
+     *
+     * @param scriptPath the path of the script
+     * @param compiler   compiles the script, if this thread has to
+     * @return the cached script, or {@code null} if the compilation didn't complete within the configured timeouts, in which
+     * case the caller should evaluate the script without compiling it
+     * @throws ScriptException if the script cannot be compiled
+     */
+    CachedScript getOrCompile(final String scriptPath, final ScriptCompiler compiler) throws ScriptException {
+        final long epoch = getInvalidationEpoch(scriptPath);
+        CachedScript script = getScript(scriptPath);
+        if (script != null) {
+            return script;
+        }
+        checkCompilationFailure(scriptPath);
+        final CompletableFuture<CachedScript> compilation = new CompletableFuture<>();
+        final CompletableFuture<CachedScript> inFlight = compilations.putIfAbsent(scriptPath, compilation);
+        if (inFlight != null) {
+            return awaitCompilation(scriptPath, inFlight);
+        }
+        return compile(scriptPath, compiler, compilation, epoch);
+    }
+
+    /**
+     * Tells if scripts that are not cached yet are interpreted while they're compiled in the background.
+     */
+    boolean isBackgroundCompilationEnabled() {
+        return backgroundCompilation && compilationScheduler != null;
+    }
+
+    /**
+     * Tells if a script is cached, without recording an access to it.
+     *
+     * @param scriptPath the path of the script
+     * @return {@code true} if the script is cached
+     */
+    boolean isCached(final String scriptPath) {
+        final Entry entry = internalMap.get(scriptPath);
+        return entry != null && entry.get() != null;
+    }
+
+    /**
+     * Returns a script from the cache or, if it's not cached yet, compiles and caches it in the background. Concurrent calls
+     * for the same script only compile it once, also with the calls of {@link #getOrCompile(String, ScriptCompiler)}. If the
+     * background executor is saturated, the script is not compiled this time.
+     *
+     * @param scriptPath the path of the script
+     * @param compiler   compiles the script, on a background thread
+     * @return the cached script, or {@code null} if the script should be interpreted while it's being compiled
+     * @throws ScriptException if the last compilation of the script failed recently
+     */
+    CachedScript getOrCompileInBackground(final String scriptPath, final ScriptCompiler compiler)
+            throws ScriptException {
+        final ScriptCompilationScheduler scheduler = compilationScheduler;
+        if (!backgroundCompilation || scheduler == null) {
+            return getOrCompile(scriptPath, compiler);
+        }
+        final long epoch = getInvalidationEpoch(scriptPath);
+        final CachedScript script = getScript(scriptPath);
+        if (script != null) {
+            return script;
+        }
+        checkCompilationFailure(scriptPath);
+        final CompletableFuture<CachedScript> compilation = new CompletableFuture<>();
+        if (compilations.putIfAbsent(scriptPath, compilation) != null) {
+            return null;
+        }
+        scheduler
+                .submit(
+                        frequencySketch.frequency(scriptPath),
+                        () -> compile(scriptPath, compiler, compilation, epoch))
+                .whenComplete((compiled, e) -> {
+                    if (e != null) {
+                        logger.debug("Background compilation of script {} failed.", scriptPath, e);
+                    } else if (!compilation.isDone()) {
+                        // the scheduler rejected the compilation
+                        compilations.remove(scriptPath, compilation);
+                        compilation.complete(null);
+                    }
+                });
+        return null;
+    }
+
+    /**
+     * Compiles and caches a script, unless the script was invalidated since {@code epoch} was taken. The script is compiled on
+     * the {@link ScriptCompilationScheduler}, with a priority depending on how often it was recently evaluated. If the
+     * compilation doesn't complete in time, it stays registered, so that concurrent callers share it instead of compiling the
+     * script again, and its result is still cached once it completes.
+     *
+     * @param epoch the {@link #getInvalidationEpoch(String) invalidation epoch} of the script when the compilation was
+     *              requested
+     */
+    private CachedScript compile(
+            final String scriptPath,
+            final ScriptCompiler compiler,
+            final CompletableFuture<CachedScript> compilation,
+            final long epoch)
+            throws ScriptException {
+        boolean pending = false;
         try {
-            boolean result = internalMap.remove(scriptPath) != null;
-            if (result) {
-                logger.debug("Removed script {} from script cache.", scriptPath);
-            } else {
-                // prefix removal
-                final String prefix = scriptPath.concat("/");
-                final Set<String> removal = new HashSet<>();
-                for (final Map.Entry<String, SoftReference<CachedScript>> entry : internalMap.entrySet()) {
-                    if (entry.getKey().startsWith(prefix)) {
-                        removal.add(entry.getKey());
+            // the script might have been cached by a compilation that completed in the meantime
+            CachedScript script = getScript(scriptPath);
+            if (script == null) {
+                final ScriptCompilationScheduler scheduler = compilationScheduler;
+                if (scheduler == null) {
+                    script = compiler.compile();
+                } else {
+                    final CompletableFuture<CachedScript> result = scheduler.submit(
+                            ScriptCompilationScheduler.PRIORITY_WAITING + frequencySketch.frequency(scriptPath),
+                            compiler::compile);
+                    script = scheduler.await(result);
+                    if (script == null) {
+                        pending = true;
+                        result.whenComplete(
+                                (compiled, e) -> completeCompilation(scriptPath, compilation, epoch, compiled, e));
+                        return null;
                     }
                 }
-                for (final String key : removal) {
-                    internalMap.remove(key);
-                    logger.debug("Detected removal for {} - removed entry {} from the cache.", scriptPath, key);
-                    result = true;
+                putScriptIfCurrent(script, epoch);
+            }
+            compilation.complete(script);
+            return script;
+        } catch (ScriptException e) {
+            recordCompilationFailure(scriptPath, e);
+            compilation.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            compilation.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (!pending) {
+                compilations.remove(scriptPath, compilation);
+            }
+        }
+    }
+
+    /**
+     * Completes a compilation that didn't complete in time for its caller.
+     */
+    private void completeCompilation(
+            final String scriptPath,
+            final CompletableFuture<CachedScript> compilation,
+            final long epoch,
+            final CachedScript script,
+            final Throwable failure) {
+        try {
+            if (failure == null) {
+                if (script != null) {
+                    putScriptIfCurrent(script, epoch);
                 }
+                compilation.complete(script);
+                return;
+            }
+            final Throwable cause =
+                    failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause instanceof ScriptException) {
+                recordCompilationFailure(scriptPath, (ScriptException) cause);
             }
-            return result;
+            logger.debug("Compilation of script {} failed after its caller stopped waiting.", scriptPath, cause);
+            compilation.completeExceptionally(cause);
         } finally {
-            writeLock.unlock();
+            compilations.remove(scriptPath, compilation);
+        }
+    }
+
+    /**
+     * Caches a compiled script, unless its script was invalidated since its compilation started.
+     *
+     * @param script the compiled script
+     * @param epoch  the {@link #getInvalidationEpoch(String) invalidation epoch} of the script when its compilation started
+     */
+    void putScriptIfCurrent(final CachedScript script, final long epoch) {
+        final String key = script.getScriptPath();
+        if (getInvalidationEpoch(key) != epoch) {
+            logger.debug("Script {} was invalidated while it was compiled, not caching it.", key);
+            return;
+        }
+        putScript(script);
+        if (getInvalidationEpoch(key) != epoch) {
+            // invalidated while it was being added
+            removeEntry(key);
+        }
+    }
+
+    /**
+     * Returns a number that changes whenever the script a cache key belongs to is invalidated.
+     *
+     * @param key the cache key
+     * @return the invalidation epoch
+     */
+    long getInvalidationEpoch(final String key) {
+        return globalInvalidationEpoch.get() + invalidationEpochs.get(getInvalidationStripe(getScriptPath(key)));
+    }
+
+    private void invalidate(final String scriptPath) {
+        invalidationEpochs.incrementAndGet(getInvalidationStripe(scriptPath));
+    }
+
+    private static int getInvalidationStripe(final String scriptPath) {
+        final int hash = scriptPath.hashCode();
+        return (hash ^ (hash >>> 16)) & (INVALIDATION_STRIPES - 1);
+    }
+
+    private void checkCompilationFailure(final String scriptPath) {
+        final CompilationFailure failure = failures.get(scriptPath);
+        if (failure != null) {
+            if (System.nanoTime() - failure.timestamp < failureTtl) {
+                final int variantStart = scriptPath.indexOf(VARIANT_SEPARATOR);
+                throw new CachedCompilationFailureException(
+                        variantStart < 0 ? scriptPath : scriptPath.substring(0, variantStart),
+                        "Script compilation failed recently, not retrying: " + failure.message);
+            }
+            failures.remove(scriptPath, failure);
+        }
+    }
+
+    private void recordCompilationFailure(final String scriptPath, final ScriptException exception) {
+        if (failureTtl <= 0) {
+            return;
+        }
+        failures.put(scriptPath, new CompilationFailure(exception.getMessage()));
+        logger.debug(
+                "Compilation of script {} failed; further attempts are suspended for {} seconds.",
+                scriptPath,
+                TimeUnit.NANOSECONDS.toSeconds(failureTtl));
+        if (failures.size() > Math.max(capacity, 1)) {
+            // forget expired failures of scripts that were not evaluated again
+            final long now = System.nanoTime();
+            failures.values().removeIf(failure -> now - failure.timestamp >= failureTtl);
+        }
+    }
+
+    /**
+     * Returns the paths of the scripts whose last compilation failed and is still remembered.
+     */
+    List<String> getCompilationFailures() {
+        return new ArrayList<>(failures.keySet());
+    }
+
+    private static boolean removeSubtree(final ConcurrentSkipListMap<String, ?> map, final String path) {
+        final Map<String, ?> subtree = map.subMap(path.concat("/"), path.concat("0"));
+        final boolean result = !subtree.isEmpty();
+        subtree.clear();
+        return result;
+    }
+
+    private CachedScript awaitCompilation(final String scriptPath, final CompletableFuture<CachedScript> compilation)
+            throws ScriptException {
+        try {
+            logger.debug("Waiting for the compilation of script {} started by another thread.", scriptPath);
+            return compilationWaitTimeout > 0
+                    ? compilation.get(compilationWaitTimeout, TimeUnit.MILLISECONDS)
+                    : compilation.get();
+        } catch (TimeoutException e) {
+            logger.debug(
+                    "Script {} was not compiled within {} milliseconds; falling back to evaluation.",
+                    scriptPath,
+                    compilationWaitTimeout);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ScriptException) {
+                throw (ScriptException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ScriptException(String.valueOf(cause));
         }
     }
 
     protected List<String> getCachedScripts() {
-        readLock.lock();
+        return new ArrayList<>(internalMap.keySet());
+    }
+
+    /**
+     * Returns the store persisting the compiled scripts of the engines that can serialize them.
+     *
+     * @return the compiled script store, or {@code null} if it's not available
+     */
+    CompiledScriptStore getCompiledScriptStore() {
+        return compiledScriptStore;
+    }
+
+    /**
+     * Returns the compiled scripts shared by scripts with an identical source.
+     *
+     * @return the shared compiled scripts, or {@code null} if they're not available
+     */
+    SharedCompiledScripts getSharedCompiledScripts() {
+        return sharedCompiledScripts;
+    }
+
+    /**
+     * Returns the dependencies between scripts, used to evict the scripts depending on a changed script.
+     *
+     * @return the dependency graph, or {@code null} if it's not available
+     */
+    ScriptDependencyGraph getScriptDependencyGraph() {
+        return scriptDependencyGraph;
+    }
+
+    /**
+     * Returns the most evaluated cached scripts, with their number of hits, in descending order of hits. Method-call variants
+     * are left out, since they cannot be compiled without the call they belong to.
+     *
+     * @param limit the maximum number of scripts to return
+     * @return the hottest scripts, mapped to their number of hits
+     */
+    Map<String, Integer> getHotScripts(final int limit) {
+        drainAccesses();
+        // the frequencies are read once, since they age while the entries are sorted
+        final List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        for (final Map.Entry<String, Entry> entry : internalMap.entrySet()) {
+            if (entry.getKey().indexOf(VARIANT_SEPARATOR) < 0) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(
+                        entry.getKey(), entry.getValue().getFrequency()));
+            }
+        }
+        entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        final Map<String, Integer> hotScripts = new LinkedHashMap<>();
+        for (final Map.Entry<String, Integer> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            hotScripts.put(entry.getKey(), entry.getValue());
+        }
+        return hotScripts;
+    }
+
+    /**
+     * Returns the number of evaluations that were interpreted because the script was not evaluated often enough to be cached.
+     */
+    long getRejectedAdmissionCount() {
+        return rejectedAdmissionCount.get();
+    }
+
+    /**
+     * Returns the number of cached scripts removed because they were compiled by a replaced script engine.
+     */
+    long getReplacedEngineCount() {
+        return replacedEngineCount.get();
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by the cached scripts.
+     */
+    long getWeight() {
+        return totalWeight.get();
+    }
+
+    /**
+     * Returns the number of scripts currently kept in the strong tier.
+     */
+    int getStrongTierCount() {
+        drainAccesses();
+        return strongTierCount.get();
+    }
+
+    /**
+     * Returns the number of cached scripts that were dropped because the garbage collector cleared them.
+     */
+    long getGarbageCollectedCount() {
+        purgeCollected();
+        return garbageCollectedCount.get();
+    }
+
+    private void promote(final Entry entry) {
+        if (entry.getFrequency() < PROMOTION_FREQUENCY) {
+            return;
+        }
+        if (reserveStrongTierSlot()) {
+            if (!entry.pin()) {
+                strongTierCount.decrementAndGet();
+            }
+        } else {
+            scheduleRebalance();
+        }
+    }
+
+    /**
+     * Schedules a rebalancing of the full strong tier, unless one is already scheduled. Rebalancing sorts all the entries, which
+     * is why it never runs on the threads reading or adding scripts.
+     */
+    private void scheduleRebalance() {
+        if (rebalanceExecutor == null || !rebalanceScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            rebalanceExecutor.schedule(
+                    () -> {
+                        rebalanceScheduled.set(false);
+                        rebalanceStrongTier();
+                    },
+                    REBALANCE_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the cache was deactivated
+            rebalanceScheduled.set(false);
+        }
+    }
+
+    private boolean reserveStrongTierSlot() {
+        int count;
+        do {
+            count = strongTierCount.get();
+            if (count >= strongTierSize) {
+                return false;
+            }
+        } while (!strongTierCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Keeps the {@link #strongTierSize} hottest scripts, according to the {@link EvictionPolicy}, in the strong tier and demotes
+     * all the others to the soft tier.
+     */
+    private void rebalanceStrongTier() {
+        evictionLock.lock();
         try {
-            return new ArrayList<>(internalMap.keySet());
+            drainAccesses();
+            final List<Entry> entries = new ArrayList<>(internalMap.values());
+            entries.sort(evictionPolicy.evictionOrder.reversed());
+            for (int i = strongTierSize; i < entries.size(); i++) {
+                if (entries.get(i).unpin()) {
+                    strongTierCount.decrementAndGet();
+                }
+            }
+            for (int i = 0; i < Math.min(strongTierSize, entries.size()); i++) {
+                final Entry entry = entries.get(i);
+                if (!entry.isPinned() && reserveStrongTierSlot() && !entry.pin()) {
+                    strongTierCount.decrementAndGet();
+                }
+            }
         } finally {
-            readLock.unlock();
+            evictionLock.unlock();
+        }
+    }
+
+    private static long weigh(final CachedScript script) {
+        if (script instanceof CachedScriptImpl && ((CachedScriptImpl) script).getWeight() > 0) {
+            return ((CachedScriptImpl) script).getWeight();
+        }
+        return DEFAULT_ENTRY_WEIGHT;
+    }
+
+    /**
+     * Returns the cache key for a variant of a script, such as the script compiled together with a method call. Variants are
+     * removed from the cache together with their script.
+     *
+     * @param scriptPath the path of the script
+     * @param qualifier  identifies the variant
+     * @return the cache key
+     */
+    static String getVariantKey(final String scriptPath, final String qualifier) {
+        return scriptPath + VARIANT_SEPARATOR + qualifier;
+    }
+
+    /**
+     * Returns the path of the script a cache key belongs to, which is the key itself unless it's the key of a variant.
+     *
+     * @param key the cache key
+     * @return the path of the script
+     */
+    static String getScriptPath(final String key) {
+        final int variantStart = key.indexOf(VARIANT_SEPARATOR);
+        return variantStart > 0 ? key.substring(0, variantStart) : key;
+    }
+
+    /**
+     * Returns the extension of the script a cache key belongs to, ignoring the qualifier of a variant.
+     */
+    private static String getExtension(final String key) {
+        final String scriptPath = getScriptPath(key);
+        final int dot = scriptPath.lastIndexOf('.');
+        return dot > scriptPath.lastIndexOf('/') ? scriptPath.substring(dot + 1) : null;
+    }
+
+    private Set<String> getVariants(final String scriptPath) {
+        final String from = scriptPath + VARIANT_SEPARATOR;
+        final String to = scriptPath + (char) (VARIANT_SEPARATOR + 1);
+        return new TreeSet<>(pathIndex.subSet(from, true, to, false));
+    }
+
+    /**
+     * Returns the paths of the cached scripts located under {@code path}, in O(log n + k) for k such scripts. The returned set is a
+     * snapshot, so that the caller can remove the scripts while iterating it.
+     */
+    private Set<String> getSubtree(final String path) {
+        // all paths starting with "path/" sort between "path/" (inclusive) and "path0" (exclusive)
+        final String from = path.concat("/");
+        final String to = path.concat("0");
+        return new TreeSet<>(pathIndex.subSet(from, true, to, false));
+    }
+
+    private boolean removeEntry(final String scriptPath) {
+        final Entry entry = internalMap.remove(scriptPath);
+        if (entry != null) {
+            unindex(scriptPath);
+            release(entry);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean removeEntry(final String scriptPath, final Entry entry) {
+        if (internalMap.remove(scriptPath, entry)) {
+            unindex(scriptPath);
+            release(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a path from the {@link #pathIndex}, unless a concurrent {@link #putScript(CachedScript)} cached a new script for it.
+     * Writers always index a path after adding its entry, so the index never misses a cached path; it can only briefly contain
+     * paths that are no longer cached, which is harmless.
+     */
+    private void unindex(final String scriptPath) {
+        pathIndex.remove(scriptPath);
+        if (internalMap.containsKey(scriptPath)) {
+            pathIndex.add(scriptPath);
+        }
+    }
+
+    private void release(final Entry entry) {
+        totalWeight.addAndGet(-entry.weight);
+        if (entry.remove()) {
+            strongTierCount.decrementAndGet();
+        }
+    }
+
+    private boolean isOverCapacity(final int sizeSlack, final long weightSlack) {
+        return internalMap.size() > capacity - sizeSlack || (maxWeight > 0 && totalWeight.get() > maxWeight - weightSlack);
+    }
+
+    /**
+     * Removes entries until the cache is back under its capacity and memory budget. Each victim is the lowest ranked of
+     * {@link #EVICTION_SAMPLE_SIZE} sampled entries, so that an eviction costs the same whatever the size of the cache. Besides
+     * the overflow, a small slack of additional entries is evicted as well, so that a cache that is kept full by a steady
+     * stream of new scripts doesn't have to evict on every {@link #putScript(CachedScript)} call.
+     *
+     * @param admittedPath the path of the script whose addition triggered the eviction, which is not evicted
+     */
+    private void evict(final String admittedPath) {
+        if (!evictionLock.tryLock()) {
+            // another thread is already evicting
+            return;
+        }
+        try {
+            // don't evict live scripts to make room for cleared ones
+            purgeCollected();
+            if (!isOverCapacity(0, 0)) {
+                return;
+            }
+            // rank the entries by their latest accesses
+            drainAccesses();
+            final int sizeSlack = Math.max(capacity, 0) / 32;
+            final long weightSlack = maxWeight / 32;
+            while (isOverCapacity(sizeSlack, weightSlack)) {
+                final Map.Entry<String, Entry> victim = sampleVictim(admittedPath);
+                if (victim == null) {
+                    break;
+                }
+                if (removeEntry(victim.getKey(), victim.getValue())) {
+                    logger.debug("Evicted script {} from script cache.", victim.getKey());
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        if (strongTierSize > 0) {
+            scheduleRebalance();
+        }
+    }
+
+    /**
+     * Removes the entries whose script was cleared by the garbage collector, counting them as garbage collected.
+     */
+    private void purgeCollected() {
+        ScriptReference reference;
+        while ((reference = (ScriptReference) collected.poll()) != null) {
+            final Entry entry = internalMap.get(reference.key);
+            if (entry != null && entry.reference == reference && removeEntry(reference.key, entry)) {
+                garbageCollectedCount.incrementAndGet();
+                logger.debug("Script {} was cleared by the garbage collector.", reference.key);
+            }
+        }
+    }
+
+    /**
+     * Returns the lowest ranked of the next {@link #EVICTION_SAMPLE_SIZE} entries.
+     *
+     * @param admittedPath the path of a script that must not be selected
+     * @return the victim, or {@code null} if there's no entry to evict
+     */
+    private Map.Entry<String, Entry> sampleVictim(final String admittedPath) {
+        final Comparator<Entry> evictionOrder = evictionPolicy.evictionOrder;
+        Map.Entry<String, Entry> victim = null;
+        int sampled = 0;
+        // a cache smaller than the sample is wrapped around at most once
+        int remaining = internalMap.size() + EVICTION_SAMPLE_SIZE;
+        while (sampled < EVICTION_SAMPLE_SIZE && remaining-- > 0) {
+            if (evictionHand == null || !evictionHand.hasNext()) {
+                evictionHand = internalMap.entrySet().iterator();
+                if (!evictionHand.hasNext()) {
+                    break;
+                }
+            }
+            final Map.Entry<String, Entry> candidate = evictionHand.next();
+            if (candidate.getKey().equals(admittedPath)) {
+                continue;
+            }
+            sampled++;
+            if (victim == null || evictionOrder.compare(candidate.getValue(), victim.getValue()) < 0) {
+                victim = candidate;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Applies the accesses recorded in the {@link #accessBuffer} to their entries, promoting the entries that became hot to the
+     * strong tier.
+     */
+    private void drainAccesses() {
+        final long now = System.nanoTime();
+        accessBuffer.drain(entry -> {
+            entry.recordAccess(now);
+            if (strongTierSize > 0 && !entry.isPinned()) {
+                promote(entry);
+            }
+            if (evictionPolicy == EvictionPolicy.LFU && ++agingCount >= Math.max(capacity, 16) * AGING_PERIOD) {
+                agingCount = 0;
+                agingPeriods.incrementAndGet();
+            }
+        });
+    }
+
+    private void evictSources() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            final int toEvict = sources.size() - sourceCacheSize + sourceCacheSize / 32;
+            final long weightToEvict =
+                    maxSourceWeight > 0 ? sourceWeight.get() - maxSourceWeight + maxSourceWeight / 32 : 0;
+            if (toEvict <= 0 && weightToEvict <= 0) {
+                return;
+            }
+            final List<Map.Entry<String, CachedSource>> candidates = new ArrayList<>(sources.entrySet());
+            candidates.sort(Map.Entry.comparingByValue(Comparator.comparingLong(source -> source.lastAccess)));
+            int evicted = 0;
+            long evictedWeight = 0;
+            for (final Map.Entry<String, CachedSource> candidate : candidates) {
+                if (evicted >= toEvict && evictedWeight >= weightToEvict) {
+                    break;
+                }
+                if (removeSource(candidate.getKey(), candidate.getValue())) {
+                    evicted++;
+                    evictedWeight += candidate.getValue().getWeight();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * A remembered compilation failure.
+     */
+    private static final class CompilationFailure {
+
+        private final String message;
+        private final long timestamp;
+
+        CompilationFailure(String message) {
+            this.message = message;
+            this.timestamp = System.nanoTime();
+        }
+    }
+
+    /**
+     * The decoded source of a script, together with the modification time of the resource it was read from.
+     */
+    private static final class CachedSource {
+
+        private final String source;
+        private final long modificationTime;
+        private long lastAccess;
+
+        CachedSource(String source, long modificationTime) {
+            this.source = source;
+            this.modificationTime = modificationTime;
+            this.lastAccess = System.nanoTime();
+        }
+
+        /**
+         * Returns the estimated number of bytes retained by the source, assuming two bytes per character.
+         */
+        long getWeight() {
+            return 2L * source.length();
+        }
+    }
+
+    /**
+     * A soft reference to a cached script, which remembers the path it's cached under once it's cleared.
+     */
+    private static final class ScriptReference extends SoftReference<CachedScript> {
+
+        private final String key;
+
+        ScriptReference(final String key, final CachedScript script, final ReferenceQueue<CachedScript> queue) {
+            super(script, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * A cache entry, holding a {@link SoftReference} to the cached script together with the usage information needed by the
+     * {@link EvictionPolicy}. The usage information is approximate: it's only updated when the {@link AccessBuffer} is
+     * drained, which may drop some accesses. Entries in the strong tier additionally hold a strong reference to their script.
+     */
+    static final class Entry {
+
+        private final ScriptReference reference;
+        private final long weight;
+        private volatile CachedScript strongReference;
+        private volatile boolean stale;
+        private long staleSince;
+        private boolean removed;
+        private long lastAccess;
+        private int frequency;
+        private final AtomicInteger agingPeriods;
+        private int agedPeriods;
+
+        Entry(ScriptReference reference, long weight, int frequency, AtomicInteger agingPeriods) {
+            this.reference = reference;
+            this.weight = weight;
+            this.lastAccess = System.nanoTime();
+            this.frequency = frequency;
+            this.agingPeriods = agingPeriods;
+            this.agedPeriods = agingPeriods.get();
+        }
+
+        CachedScript get() {
+            final CachedScript script = strongReference;
+            return script != null ? script : reference.get();
+        }
+
+        void markStale() {
+            if (!stale) {
+                staleSince = System.nanoTime();
+                stale = true;
+            }
+        }
+
+        boolean isStale() {
+            return stale;
+        }
+
+        boolean isPinned() {
+            return strongReference != null;
+        }
+
+        /**
+         * Moves this entry to the strong tier.
+         *
+         * @return {@code true} if the entry was moved, {@code false} if it was already in the strong tier, was removed from the
+         * cache or its script was already cleared
+         */
+        synchronized boolean pin() {
+            if (removed || strongReference != null) {
+                return false;
+            }
+            strongReference = reference.get();
+            return strongReference != null;
+        }
+
+        /**
+         * Moves this entry back to the soft tier.
+         *
+         * @return {@code true} if the entry was in the strong tier
+         */
+        synchronized boolean unpin() {
+            if (strongReference == null) {
+                return false;
+            }
+            strongReference = null;
+            return true;
+        }
+
+        /**
+         * Marks this entry as removed from the cache.
+         *
+         * @return {@code true} if the entry was in the strong tier
+         */
+        synchronized boolean remove() {
+            removed = true;
+            return unpin();
+        }
+
+        void recordAccess(final long time) {
+            lastAccess = time;
+            final int periods = agingPeriods.get();
+            frequency = age(frequency, periods - agedPeriods);
+            agedPeriods = periods;
+            if (frequency < Integer.MAX_VALUE) {
+                frequency++;
+            }
+        }
+
+        long getLastAccess() {
+            return lastAccess;
+        }
+
+        /**
+         * Returns the frequency, halved once for every aging period that passed since the entry was last accessed.
+         */
+        int getFrequency() {
+            return age(frequency, agingPeriods.get() - agedPeriods);
+        }
+
+        private static int age(final int frequency, final int periods) {
+            return periods >= Integer.SIZE ? 0 : frequency >>> periods;
+        }
+
+        long getWeight() {
+            return weight;
         }
     }
 }
@@ -20,8 +20,26 @@ package org.apache.sling.scripting.core.impl;
 
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 
+import static org.apache.sling.scripting.core.impl.CompiledScriptStore.DEFAULT_COMPILED_STORE_SIZE;
+import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_ADMISSION_THRESHOLD;
 import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_CACHE_SIZE;
+import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_EVICTION_POLICY;
+import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_FAILURE_TTL;
+import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_MAX_MEMORY;
+import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_MAX_STALENESS;
+import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_SOURCE_CACHE_MAX_MEMORY;
+import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_SOURCE_CACHE_SIZE;
+import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_STRONG_TIER_SIZE;
+import static org.apache.sling.scripting.core.impl.ScriptCacheInvalidator.DEFAULT_GENERATION_SETTLE_TIME;
+import static org.apache.sling.scripting.core.impl.ScriptCacheInvalidator.DEFAULT_INVALIDATION_DELAY;
+import static org.apache.sling.scripting.core.impl.ScriptCacheInvalidator.DEFAULT_INVALIDATION_QUEUE_SIZE;
+import static org.apache.sling.scripting.core.impl.ScriptCacheWarmUp.DEFAULT_MANIFEST_SIZE;
+import static org.apache.sling.scripting.core.impl.ScriptCacheWarmUp.DEFAULT_WARM_UP_PARALLELISM;
+import static org.apache.sling.scripting.core.impl.ScriptCompilationScheduler.DEFAULT_COMPILATION_PARALLELISM;
+import static org.apache.sling.scripting.core.impl.ScriptCompilationScheduler.DEFAULT_COMPILATION_QUEUE_SIZE;
+import static org.apache.sling.scripting.core.impl.ScriptCompilationScheduler.DEFAULT_COMPILATION_TIMEOUT;
 
 @ObjectClassDefinition(
         name = "Apache Sling Script Cache",
@@ -34,6 +52,135 @@ import static org.apache.sling.scripting.core.impl.ScriptCacheImpl.DEFAULT_CACHE
                     "The Cache Size defines the maximum number of compiled script references that will be stored in the cache's internal map.")
     int org_apache_sling_scripting_cache_size() default DEFAULT_CACHE_SIZE; // NOSONAR
 
+    @AttributeDefinition(
+            name = "Eviction Policy",
+            description =
+                    "The policy used to select the scripts that are removed once the cache is full: 'lru' evicts the least recently used scripts, 'lfu' the least frequently used ones.",
+            options = {
+                @Option(label = "Least Recently Used", value = "lru"),
+                @Option(label = "Least Frequently Used", value = "lfu")
+            })
+    String org_apache_sling_scripting_cache_eviction__policy() default DEFAULT_EVICTION_POLICY; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Maximum Memory",
+            description =
+                    "The maximum amount of heap memory, in megabytes, that the cached scripts are estimated to use. The estimate is based on the size of the script sources. A value of 0 disables this limit, leaving the cache only bounded by its size.")
+    int org_apache_sling_scripting_cache_max__memory() default DEFAULT_MAX_MEMORY; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Strong Tier Size",
+            description =
+                    "The number of most used scripts that are strongly referenced by the cache, so that they are not cleared by the garbage collector under memory pressure. All other scripts are softly referenced. A value of 0 keeps all scripts softly referenced.")
+    int org_apache_sling_scripting_cache_strong__tier__size() default DEFAULT_STRONG_TIER_SIZE; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Source Cache Size",
+            description =
+                    "The maximum number of decoded script sources that are cached for script engines which cannot compile scripts. Cached sources are invalidated when their scripts change. Only enable the source cache if the installed engines which cannot compile scripts read them from the provided reader. A value of 0 disables the source cache.")
+    int org_apache_sling_scripting_cache_source__size() default DEFAULT_SOURCE_CACHE_SIZE; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Source Cache Maximum Memory",
+            description =
+                    "The maximum amount of heap memory, in megabytes, used by the cached script sources. Sources larger than 1/32 of this amount are not cached. A value of 0 disables this limit, leaving the source cache only bounded by its size.")
+    int org_apache_sling_scripting_cache_source__max__memory() default DEFAULT_SOURCE_CACHE_MAX_MEMORY; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Compilation Failure TTL",
+            description =
+                    "The time in seconds during which a failed script compilation is remembered. Until then, or until the script changes, evaluating the script fails immediately instead of compiling it again. A value of 0 disables this behaviour.")
+    int org_apache_sling_scripting_cache_failure__ttl() default DEFAULT_FAILURE_TTL; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Background Recompilation",
+            description =
+                    "If enabled, a changed script is recompiled in the background while its previous version keeps being served, instead of being removed from the cache and recompiled by the next request.")
+    boolean org_apache_sling_scripting_cache_background__recompilation() default false; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Maximum Staleness",
+            description =
+                    "The time in seconds during which the previous version of a changed script can be served while the script is recompiled in the background. Afterwards, the next request compiles the script itself.")
+    int org_apache_sling_scripting_cache_max__staleness() default DEFAULT_MAX_STALENESS; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Warm-up",
+            description =
+                    "If enabled, the scripts found under the resource resolver search paths are compiled into the cache on startup and every time the cache is cleared because the available script engines changed.")
+    boolean org_apache_sling_scripting_cache_warm__up() default false; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Warm-up Parallelism",
+            description = "The maximum number of scripts compiled in parallel during a warm-up.")
+    int org_apache_sling_scripting_cache_warm__up__parallelism() default DEFAULT_WARM_UP_PARALLELISM; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Manifest Size",
+            description =
+                    "The maximum number of the most evaluated scripts recorded in a manifest in the bundle data area. The scripts of the manifest are compiled first on startup. 0 disables the manifest.")
+    int org_apache_sling_scripting_cache_manifest__size() default DEFAULT_MANIFEST_SIZE; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Compiled Script Store Size",
+            description =
+                    "The maximum size in MB of the compiled scripts persisted in the bundle data area, for the script engines that can serialize them. 0 disables the store.")
+    int org_apache_sling_scripting_cache_compiled__store__size() default DEFAULT_COMPILED_STORE_SIZE; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Content Sharing",
+            description =
+                    "If enabled, scripts with an identical source compiled by the same script engine share one compiled script, also across bundled scripts. Only enable it if the compiled scripts of the installed engines don't depend on the script path.")
+    boolean org_apache_sling_scripting_cache_content__sharing() default false; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Admission Threshold",
+            description =
+                    "The number of recent evaluations after which a script is compiled and cached. Until then, the script is interpreted. 1 compiles every script on its first evaluation; the maximum is 15.")
+    int org_apache_sling_scripting_cache_admission__threshold() default DEFAULT_ADMISSION_THRESHOLD; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Background Compilation",
+            description =
+                    "If enabled, a script that's not cached yet is interpreted while it's compiled in the background, instead of being compiled by the requesting thread.")
+    boolean org_apache_sling_scripting_cache_background__compilation() default false; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Compilation Parallelism",
+            description =
+                    "The maximum number of scripts compiled in parallel. Further compilations wait, the most evaluated scripts first. 0 uses the number of available processors.")
+    int org_apache_sling_scripting_cache_compilation__parallelism() default DEFAULT_COMPILATION_PARALLELISM; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Compilation Timeout",
+            description =
+                    "The time in milliseconds a request waits for the compilation of a script, including the time the compilation waits for a thread, whether the request or another request compiling the same script started it. Afterwards, the script is interpreted. 0 waits indefinitely.")
+    long org_apache_sling_scripting_cache_compilation__timeout() default DEFAULT_COMPILATION_TIMEOUT; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Compilation Queue Size",
+            description =
+                    "The maximum number of compilations waiting for a thread. Further compilations are rejected and their scripts are interpreted until they can be compiled.")
+    int org_apache_sling_scripting_cache_compilation__queue__size() default DEFAULT_COMPILATION_QUEUE_SIZE; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Generation Settle Time",
+            description =
+                    "If greater than 0, changed scripts keep being served until no script changed for this time in milliseconds. They are then recompiled together and replaced at once by a new generation, so that a package installation never leaves a mix of old and new scripts. Takes precedence over the background recompilation.")
+    long org_apache_sling_scripting_cache_generation__settle__time() default DEFAULT_GENERATION_SETTLE_TIME; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Invalidation Delay",
+            description =
+                    "The number of milliseconds script changes are collected before they're applied to the cache in one batch. Repeated changes to the same script within this delay are applied once.")
+    long org_apache_sling_scripting_cache_invalidation__delay() default DEFAULT_INVALIDATION_DELAY; // NOSONAR
+
+    @AttributeDefinition(
+            name = "Invalidation Queue Size",
+            description =
+                    "The maximum number of distinct changed scripts waiting to be applied to the cache. When more scripts change at once, all the cached scripts below their common ancestor are removed instead, or the whole cache is cleared.")
+    int org_apache_sling_scripting_cache_invalidation__queue__size() default DEFAULT_INVALIDATION_QUEUE_SIZE; // NOSONAR
+
     @AttributeDefinition(
             name = "Additional Extensions",
             description =
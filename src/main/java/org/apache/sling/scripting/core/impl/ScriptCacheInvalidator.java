@@ -21,23 +21,42 @@ package org.apache.sling.scripting.core.impl;
 import javax.script.Compilable;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
 import org.apache.sling.api.resource.observation.ResourceChange;
 import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.scripting.api.CachedScript;
 import org.apache.sling.scripting.api.ScriptCache;
 import org.apache.sling.scripting.core.impl.jsr223.SlingScriptEngineManager;
+import org.apache.sling.scripting.core.impl.jsr223.SortableScriptEngineFactory;
 import org.jetbrains.annotations.NotNull;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
@@ -45,6 +64,8 @@ import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventConstants;
 import org.osgi.service.event.EventHandler;
@@ -53,27 +74,85 @@ import org.slf4j.LoggerFactory;
 
 @Component(
         immediate = true, // event handler should be immediate
-        service = {EventHandler.class},
+        service = {EventHandler.class, ScriptCacheInvalidator.class},
         property = {
             EventConstants.EVENT_TOPIC + "=org/apache/sling/scripting/core/impl/jsr223/SlingScriptEngineManager/*"
         },
         configurationPid = "org.apache.sling.scripting.core.impl.ScriptCacheImpl")
 public class ScriptCacheInvalidator implements ResourceChangeListener, ExternalResourceChangeListener, EventHandler {
 
+    /**
+     * The default number of milliseconds changes are collected before they're applied to the script cache.
+     */
+    public static final long DEFAULT_INVALIDATION_DELAY = 100;
+
+    /**
+     * The default maximum number of distinct changed paths waiting to be applied to the script cache.
+     */
+    public static final int DEFAULT_INVALIDATION_QUEUE_SIZE = 10000;
+
+    /**
+     * The default number of milliseconds without script changes after which a new generation of scripts is swapped in.
+     * {@code 0} disables generations.
+     */
+    public static final long DEFAULT_GENERATION_SETTLE_TIME = 0;
+
     private final Logger logger = LoggerFactory.getLogger(ScriptCacheInvalidator.class);
 
     private final BundleContext bundleContext;
     private final Set<String> extensions = new TreeSet<>();
+    private final Map<String, ScriptEngineFactory> extensionFactories = new HashMap<>();
     private final String[] additionalExtensions;
+    private final boolean sourceCacheEnabled;
 
     private volatile ServiceRegistration<ResourceChangeListener> resourceChangeListener;
 
     private final SlingScriptEngineManager slingScriptEngineManager;
 
-    private final ExecutorService threadPool;
+    private final ScheduledExecutorService threadPool;
+
+    private final long invalidationDelay;
+
+    private final int invalidationQueueSize;
+
+    private final Object invalidationLock = new Object();
+
+    private Map<String, ResourceChange.ChangeType> pendingInvalidations = new HashMap<>();
+
+    private String overflowPrefix;
+
+    private long oldestPendingInvalidation;
+
+    private volatile long invalidationLag;
+
+    private final AtomicLong overflowCount = new AtomicLong();
 
     private final ScriptCache scriptCache;
 
+    private final boolean backgroundRecompilation;
+
+    private final Set<String> pendingRecompilations = ConcurrentHashMap.newKeySet();
+
+    private final long generationSettleTime;
+
+    private final ScheduledExecutorService generationThreadPool;
+
+    private final Object generationLock = new Object();
+
+    private final Map<String, ResourceChange.ChangeType> pendingGeneration = new HashMap<>();
+
+    private String generationOverflowPrefix;
+
+    private ScheduledFuture<?> scheduledGeneration;
+
+    private long firstPendingChange;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    volatile ResourceResolverFactory resourceResolverFactory;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile ScriptCacheWarmUp scriptCacheWarmUp;
+
     @Activate
     public ScriptCacheInvalidator(
             @Reference final SlingScriptEngineManager slingScriptEngineManager,
@@ -83,9 +162,19 @@ public class ScriptCacheInvalidator implements ResourceChangeListener, ExternalR
 
         this.slingScriptEngineManager = slingScriptEngineManager;
         this.scriptCache = scriptCache;
-        this.threadPool = Executors.newSingleThreadExecutor();
+        this.threadPool = Executors.newSingleThreadScheduledExecutor();
+        this.invalidationDelay = Math.max(configuration.org_apache_sling_scripting_cache_invalidation__delay(), 0);
+        this.invalidationQueueSize =
+                Math.max(configuration.org_apache_sling_scripting_cache_invalidation__queue__size(), 1);
         this.bundleContext = bundleCtx;
         this.additionalExtensions = configuration.org_apache_sling_scripting_cache_additional__extensions();
+        this.sourceCacheEnabled = configuration.org_apache_sling_scripting_cache_source__size() > 0;
+        this.backgroundRecompilation = configuration.org_apache_sling_scripting_cache_background__recompilation()
+                && scriptCache instanceof ScriptCacheImpl;
+        this.generationSettleTime = scriptCache instanceof ScriptCacheImpl
+                ? Math.max(configuration.org_apache_sling_scripting_cache_generation__settle__time(), 0)
+                : 0;
+        this.generationThreadPool = generationSettleTime > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
         this.handleEvent(null);
     }
 
@@ -101,20 +190,478 @@ public class ScriptCacheInvalidator implements ResourceChangeListener, ExternalR
         } catch (InterruptedException e) {
             logger.warn("Unable to shutdown script cache thread in time");
         }
+        if (generationThreadPool != null) {
+            generationThreadPool.shutdownNow();
+        }
     }
 
     @Override
     public void onChange(@NotNull List<ResourceChange> list) {
-        final Runnable eventTask = () -> {
+        if (generationThreadPool != null) {
+            synchronized (pendingGeneration) {
+                for (final ResourceChange change : list) {
+                    generationOverflowPrefix = enqueue(pendingGeneration, generationOverflowPrefix, change);
+                }
+            }
+            scheduleGeneration();
+            return;
+        }
+        final boolean schedule;
+        synchronized (invalidationLock) {
+            schedule = pendingInvalidations.isEmpty() && overflowPrefix == null;
+            if (schedule) {
+                oldestPendingInvalidation = System.nanoTime();
+            }
             for (final ResourceChange change : list) {
-                this.scriptCache.removeScript(change.getPath());
+                overflowPrefix = enqueue(pendingInvalidations, overflowPrefix, change);
+            }
+        }
+        if (schedule) {
+            try {
+                threadPool.schedule(this::applyInvalidations, invalidationDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                logger.debug("Not invalidating the script cache, the invalidator is being deactivated.");
+            }
+        }
+    }
+
+    /**
+     * Adds a change to the pending changes, which are bounded by the invalidation queue size.
+     *
+     * @param pending the pending changes, mapped to their path
+     * @param prefix  the common ancestor of the changes that overflowed the queue, or {@code null}
+     * @param change  the new change
+     * @return the common ancestor of the changes that overflowed the queue, or {@code null} if the queue didn't overflow
+     */
+    private String enqueue(
+            final Map<String, ResourceChange.ChangeType> pending, final String prefix, final ResourceChange change) {
+        final String path = change.getPath();
+        if (prefix != null) {
+            forgetDependencies(path, change.getType());
+            return getCommonAncestor(prefix, path);
+        }
+        if (pending.size() >= invalidationQueueSize && !pending.containsKey(path)) {
+            // too many distinct paths changed: fall back to removing their common ancestor
+            final String ancestor = overflow(pending, path);
+            pending.clear();
+            forgetDependencies(path, change.getType());
+            return ancestor;
+        }
+        // a removal supersedes a change of the same path
+        pending.merge(
+                path,
+                change.getType(),
+                (previous, type) -> previous == ResourceChange.ChangeType.REMOVED ? previous : type);
+        return null;
+    }
+
+    /**
+     * Returns the common ancestor of the pending changes and of a new changed path, which replaces them once too many distinct
+     * paths changed. The dependencies of the pending removed scripts are forgotten right away, since the removal of their
+     * common ancestor no longer tells which scripts were removed.
+     *
+     * @param pending the pending changes, mapped to their path
+     * @param path    the new changed path
+     * @return the common ancestor
+     */
+    private String overflow(final Map<String, ResourceChange.ChangeType> pending, final String path) {
+        overflowCount.incrementAndGet();
+        String prefix = path;
+        for (final Map.Entry<String, ResourceChange.ChangeType> change : pending.entrySet()) {
+            prefix = getCommonAncestor(prefix, change.getKey());
+            forgetDependencies(change.getKey(), change.getValue());
+        }
+        return prefix;
+    }
+
+    /**
+     * Forgets the dependencies of a removed script whose removal is folded into the removal of a common ancestor.
+     *
+     * @param path the changed path
+     * @param type the type of the change
+     */
+    private void forgetDependencies(final String path, final ResourceChange.ChangeType type) {
+        final ScriptDependencyGraph graph = getScriptDependencyGraph();
+        if (graph != null && type == ResourceChange.ChangeType.REMOVED) {
+            graph.removeDependencies(path);
+        }
+    }
+
+    /**
+     * Applies all the changes collected since the last batch to the script cache, skipping the paths below another changed
+     * path since removing a path removes its whole subtree.
+     */
+    private void applyInvalidations() {
+        final Map<String, ResourceChange.ChangeType> changes;
+        final String prefix;
+        final long oldest;
+        synchronized (invalidationLock) {
+            changes = pendingInvalidations;
+            prefix = overflowPrefix;
+            oldest = oldestPendingInvalidation;
+            pendingInvalidations = new HashMap<>();
+            overflowPrefix = null;
+        }
+        addDependents(changes, prefix);
+        if (prefix != null) {
+            if ("/".equals(prefix)) {
+                logger.info("Too many scripts changed at once, clearing the script cache.");
+                scriptCache.clear();
+            } else {
+                logger.info("Too many scripts changed at once, removing all the scripts below {}.", prefix);
+                scriptCache.removeScript(prefix);
+            }
+        }
+        for (final String path : collapse(changes.keySet())) {
+            if (backgroundRecompilation && changes.get(path) == ResourceChange.ChangeType.CHANGED) {
+                scheduleRecompilation(path);
+            } else {
+                scriptCache.removeScript(path);
+            }
+        }
+        invalidationLag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+        logger.debug("Applied {} script changes in {}ms.", changes.size(), invalidationLag);
+    }
+
+    /**
+     * Adds the scripts depending on the changed scripts, directly or transitively, to the changes, and forgets the
+     * dependencies of the removed scripts.
+     *
+     * @param changes the changes, mapped to their path
+     * @param prefix  the common ancestor of the changes that overflowed the queue, or {@code null}
+     */
+    private void addDependents(final Map<String, ResourceChange.ChangeType> changes, final String prefix) {
+        final ScriptDependencyGraph graph = getScriptDependencyGraph();
+        if (graph == null) {
+            return;
+        }
+        final Map<String, ResourceChange.ChangeType> dependents = new HashMap<>();
+        if (prefix != null) {
+            for (final String dependent : graph.getDependents(prefix)) {
+                dependents.put(dependent, ResourceChange.ChangeType.CHANGED);
+            }
+        }
+        for (final Map.Entry<String, ResourceChange.ChangeType> change : changes.entrySet()) {
+            for (final String dependent : graph.getDependents(change.getKey())) {
+                dependents.put(dependent, ResourceChange.ChangeType.CHANGED);
+            }
+            if (change.getValue() == ResourceChange.ChangeType.REMOVED) {
+                graph.removeDependencies(change.getKey());
+            }
+        }
+        for (final Map.Entry<String, ResourceChange.ChangeType> dependent : dependents.entrySet()) {
+            changes.putIfAbsent(dependent.getKey(), dependent.getValue());
+        }
+    }
+
+    private ScriptDependencyGraph getScriptDependencyGraph() {
+        return scriptCache instanceof ScriptCacheImpl
+                ? ((ScriptCacheImpl) scriptCache).getScriptDependencyGraph()
+                : null;
+    }
+
+    /**
+     * Returns the number of distinct changed paths waiting to be applied to the script cache.
+     */
+    int getPendingInvalidationCount() {
+        synchronized (invalidationLock) {
+            return pendingInvalidations.size();
+        }
+    }
+
+    /**
+     * Returns the number of milliseconds between the first change of the last batch and the moment it was applied.
+     */
+    long getInvalidationLag() {
+        return invalidationLag;
+    }
+
+    /**
+     * Returns how many times too many paths changed at once and their common ancestor was removed instead.
+     */
+    long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * Sorts paths and drops the ones below another path of the collection.
+     *
+     * @param paths the paths
+     * @return the sorted paths, without their descendants
+     */
+    static List<String> collapse(final Collection<String> paths) {
+        final Set<String> all = new HashSet<>(paths);
+        final List<String> collapsed = new ArrayList<>(all.size());
+        for (final String path : all) {
+            boolean descendant = false;
+            for (int separator = path.lastIndexOf('/'); separator > 0 && !descendant; ) {
+                descendant = all.contains(path.substring(0, separator));
+                separator = path.lastIndexOf('/', separator - 1);
+            }
+            if (!descendant) {
+                collapsed.add(path);
+            }
+        }
+        Collections.sort(collapsed);
+        return collapsed;
+    }
+
+    /**
+     * Returns the deepest common ancestor of two paths, which may be one of the paths.
+     *
+     * @param path  a path
+     * @param other another path
+     * @return the common ancestor, {@code /} if the paths only share the root
+     */
+    static String getCommonAncestor(final String path, final String other) {
+        if (path.equals(other)) {
+            return path;
+        }
+        final int length = Math.min(path.length(), other.length());
+        int common = 0;
+        while (common < length && path.charAt(common) == other.charAt(common)) {
+            common++;
+        }
+        if (common == path.length() && other.charAt(common) == '/') {
+            return path;
+        }
+        if (common == other.length() && path.charAt(common) == '/') {
+            return other;
+        }
+        final int separator = common > 0 ? path.lastIndexOf('/', common - 1) : -1;
+        return separator > 0 ? path.substring(0, separator) : "/";
+    }
+
+    /**
+     * Marks a changed script as stale and recompiles it in the background, on the {@link ScriptCompilationScheduler}.
+     * Consecutive changes to a script that's waiting to be recompiled only trigger one compilation. Without a scheduler, or if
+     * too many compilations are waiting, the script is removed from the cache instead.
+     */
+    private void scheduleRecompilation(final String path) {
+        final ScriptCacheImpl cache = (ScriptCacheImpl) scriptCache;
+        final ScriptCompilationScheduler scheduler = cache.compilationScheduler;
+        if (scheduler == null) {
+            cache.removeScript(path);
+        } else if (cache.markStale(path) && pendingRecompilations.add(path)) {
+            final CompletableFuture<Boolean> recompilation =
+                    scheduler.submit(ScriptCompilationScheduler.PRIORITY_BACKGROUND, () -> {
+                        pendingRecompilations.remove(path);
+                        recompile(cache, path);
+                        return Boolean.TRUE;
+                    });
+            if (isRejected(recompilation)) {
+                pendingRecompilations.remove(path);
+                cache.removeScript(path);
+            }
+        }
+    }
+
+    /**
+     * Tells if the {@link ScriptCompilationScheduler} rejected a compilation, which then completes with {@code null} right
+     * away.
+     */
+    private static boolean isRejected(final CompletableFuture<Boolean> compilation) {
+        return compilation.isDone() && !compilation.isCompletedExceptionally() && compilation.join() == null;
+    }
+
+    /**
+     * Postpones building a new generation until no script changed for the configured settle time, so that all the scripts
+     * changed by a burst of changes end up in the same generation. A burst that doesn't settle is cut after ten times the
+     * settle time.
+     */
+    private synchronized void scheduleGeneration() {
+        final long now = System.currentTimeMillis();
+        if (scheduledGeneration == null || scheduledGeneration.isDone()) {
+            firstPendingChange = now;
+        } else if (now - firstPendingChange < generationSettleTime * 10) {
+            if (!scheduledGeneration.cancel(false)) {
+                // the generation is already being built; the new changes go into the next one
+                firstPendingChange = now;
             }
-        };
-        threadPool.execute(eventTask);
+        } else {
+            return;
+        }
+        try {
+            scheduledGeneration = generationThreadPool.schedule(
+                    this::scheduleGenerationBuild, generationSettleTime, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Not building a new script generation, the invalidator is being deactivated.");
+        }
     }
 
-    private void configureListener() {
-        this.scriptCache.clear();
+    /**
+     * Builds a new generation in the background, on the {@link ScriptCompilationScheduler}. Without a scheduler, or if too
+     * many compilations are waiting, the generation is built on the thread of the settle timer instead.
+     */
+    private void scheduleGenerationBuild() {
+        final ScriptCompilationScheduler scheduler = ((ScriptCacheImpl) scriptCache).compilationScheduler;
+        final CompletableFuture<Boolean> build = scheduler != null
+                ? scheduler.submit(ScriptCompilationScheduler.PRIORITY_BACKGROUND, () -> {
+                    buildGeneration();
+                    return Boolean.TRUE;
+                })
+                : null;
+        if (build == null || isRejected(build)) {
+            buildGeneration();
+        }
+    }
+
+    /**
+     * Recompiles the changed scripts that are cached and swaps them into the cache as a new generation. Scripts that were
+     * removed, or cannot be recompiled, are removed as part of the same generation. Generations are built one at a time, so
+     * that they're swapped in the order of the changes.
+     */
+    private void buildGeneration() {
+        synchronized (generationLock) {
+            buildGeneration((ScriptCacheImpl) scriptCache);
+        }
+    }
+
+    private void buildGeneration(final ScriptCacheImpl cache) {
+        final Map<String, ResourceChange.ChangeType> changes;
+        final String prefix;
+        synchronized (pendingGeneration) {
+            changes = new HashMap<>(pendingGeneration);
+            prefix = generationOverflowPrefix;
+            pendingGeneration.clear();
+            generationOverflowPrefix = null;
+        }
+        addDependents(changes, prefix);
+        final Map<String, CachedScript> compiled = new HashMap<>();
+        final Set<String> removed = new HashSet<>();
+        final ResourceResolverFactory factory = resourceResolverFactory;
+        if (factory == null) {
+            removed.addAll(changes.keySet());
+        } else {
+            try (ResourceResolver resolver = factory.getServiceResourceResolver(null)) {
+                for (final Map.Entry<String, ResourceChange.ChangeType> change : changes.entrySet()) {
+                    final String path = change.getKey();
+                    if (change.getValue() != ResourceChange.ChangeType.CHANGED
+                            || cache.peekScript(path) == null
+                            || !compileForGeneration(cache, resolver, path, compiled)) {
+                        removed.add(path);
+                    }
+                }
+            } catch (LoginException | RuntimeException e) {
+                logger.warn("Unable to recompile the changed scripts, removing them from the cache.", e);
+                compiled.clear();
+                removed.addAll(changes.keySet());
+            }
+        }
+        if ("/".equals(prefix)) {
+            logger.info("Too many scripts changed at once, clearing the script cache.");
+            cache.clear();
+        } else if (prefix != null) {
+            logger.info("Too many scripts changed at once, removing all the scripts below {}.", prefix);
+            removed.add(prefix);
+        }
+        cache.swapGeneration(compiled, removed);
+    }
+
+    /**
+     * Recompiles a changed script for the next generation. A script which cannot be read or compiled only fails on its own,
+     * the other scripts of the generation are still swapped in.
+     *
+     * @return {@code true} if the script was recompiled, {@code false} if it must be removed from the cache
+     */
+    private boolean compileForGeneration(
+            final ScriptCacheImpl cache,
+            final ResourceResolver resolver,
+            final String path,
+            final Map<String, CachedScript> compiled) {
+        final Resource resource = resolver.getResource(path);
+        final ScriptEngine scriptEngine = resource != null ? getScriptEngine(path) : null;
+        if (!(scriptEngine instanceof Compilable)) {
+            return false;
+        }
+        try (Reader reader = DefaultSlingScript.openScript(resource)) {
+            compiled.put(
+                    path,
+                    DefaultSlingScript.compile(
+                            cache, path, scriptEngine, reader, resource.getResourceMetadata().getContentLength()));
+            return true;
+        } catch (IOException | ScriptException | RuntimeException e) {
+            logger.warn("Unable to recompile the changed script {}, removing it from the cache.", path, e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns an engine for the script at {@code path} that the current thread can compile with.
+     *
+     * @param path the path of the script
+     * @return the engine, or {@code null} if no engine handles the extension of the script
+     */
+    private ScriptEngine getScriptEngine(final String path) {
+        final int dot = path.lastIndexOf('.');
+        return dot > path.lastIndexOf('/')
+                ? slingScriptEngineManager.getEngineByExtension(path.substring(dot + 1))
+                : null;
+    }
+
+    /**
+     * Recompiles a stale script and caches it, unless the script changed again in the meantime: the recompilation queued by
+     * that change then recompiles it from its latest source.
+     */
+    private void recompile(final ScriptCacheImpl cache, final String path) {
+        // taken before the source is read, so that a change while the script is recompiled discards the result
+        final long epoch = cache.getInvalidationEpoch(path);
+        final CachedScript staleScript = cache.getStaleScript(path);
+        final ResourceResolverFactory factory = resourceResolverFactory;
+        if (staleScript == null) {
+            return;
+        }
+        // the engine of the stale script is shared with the requests evaluating it
+        final ScriptEngine scriptEngine = getScriptEngine(path);
+        if (factory == null || !(scriptEngine instanceof Compilable)) {
+            cache.removeScript(path);
+            return;
+        }
+        try (ResourceResolver resolver = factory.getServiceResourceResolver(null)) {
+            final Resource resource = resolver.getResource(path);
+            if (resource == null) {
+                cache.removeScript(path);
+                return;
+            }
+            try (Reader reader = DefaultSlingScript.openScript(resource)) {
+                cache.putScriptIfCurrent(
+                        DefaultSlingScript.compile(
+                                cache,
+                                path,
+                                scriptEngine,
+                                reader,
+                                resource.getResourceMetadata().getContentLength()),
+                        epoch);
+            }
+            logger.debug("Recompiled script {} in the background.", path);
+        } catch (LoginException | IOException | ScriptException | RuntimeException e) {
+            logger.debug("Unable to recompile script {} in the background, removing it from the cache.", path, e);
+            cache.removeScript(path);
+        }
+    }
+
+    /**
+     * Evicts the scripts whose engine changed and registers the resource change listener for the current extensions.
+     *
+     * @param changedExtensions the extensions whose engine changed or disappeared, or {@code null} to clear the whole cache
+     */
+    private void configureListener(final Set<String> changedExtensions) {
+        final boolean evicted;
+        if (changedExtensions == null) {
+            this.scriptCache.clear();
+            evicted = true;
+        } else if (scriptCache instanceof ScriptCacheImpl) {
+            evicted = ((ScriptCacheImpl) scriptCache).removeScriptsByExtension(changedExtensions) > 0;
+        } else if (!changedExtensions.isEmpty()) {
+            this.scriptCache.clear();
+            evicted = true;
+        } else {
+            evicted = false;
+        }
+        final ScriptCacheWarmUp warmUp = scriptCacheWarmUp;
+        if (evicted && warmUp != null) {
+            warmUp.start();
+        }
         if (extensions.isEmpty()) {
             if (resourceChangeListener != null) {
                 resourceChangeListener.unregister();
@@ -148,10 +695,18 @@ public class ScriptCacheInvalidator implements ResourceChangeListener, ExternalR
 
     private void initializeExtensions() {
         this.extensions.clear();
+        this.extensionFactories.clear();
         for (final ScriptEngineFactory factory : this.slingScriptEngineManager.getEngineFactories()) {
-            final ScriptEngine scriptEngine = factory.getScriptEngine();
-            if (scriptEngine instanceof Compilable) {
+            // with the source cache enabled, the scripts of all engines can be cached
+            if (sourceCacheEnabled || factory.getScriptEngine() instanceof Compilable) {
                 extensions.addAll(factory.getExtensions());
+                final ScriptEngineFactory delegate = factory instanceof SortableScriptEngineFactory
+                        ? ((SortableScriptEngineFactory) factory).getDelegate()
+                        : factory;
+                for (final String extension : factory.getExtensions()) {
+                    // the first factory of an extension is the one evaluating its scripts
+                    extensionFactories.putIfAbsent(extension, delegate);
+                }
             }
         }
         if (this.additionalExtensions != null) {
@@ -159,11 +714,34 @@ public class ScriptCacheInvalidator implements ResourceChangeListener, ExternalR
         }
     }
 
+    /**
+     * Returns the extensions whose scripts were handled by an engine that's no longer used for them, as told by
+     * {@link ScriptCacheImpl#isSameEngine(ScriptEngineFactory, ScriptEngineFactory)}. Extensions that only gained an engine are
+     * not changed.
+     *
+     * @param previous the factories previously handling each extension
+     * @param current  the factories currently handling each extension
+     * @return the changed extensions
+     */
+    static Set<String> getChangedExtensions(
+            final Map<String, ScriptEngineFactory> previous, final Map<String, ScriptEngineFactory> current) {
+        final Set<String> changed = new TreeSet<>();
+        for (final Map.Entry<String, ScriptEngineFactory> entry : previous.entrySet()) {
+            if (!ScriptCacheImpl.isSameEngine(entry.getValue(), current.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
     @Override
     public void handleEvent(final Event event) {
         synchronized (this.extensions) {
+            final Map<String, ScriptEngineFactory> previousFactories = new HashMap<>(extensionFactories);
             this.initializeExtensions();
-            this.configureListener();
+            // the cache is cleared on activation, since the engines that compiled its scripts are unknown
+            this.configureListener(
+                    event == null ? null : getChangedExtensions(previousFactories, extensionFactories));
         }
     }
 }
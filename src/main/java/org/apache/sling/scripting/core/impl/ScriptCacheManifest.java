@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the manifest of the hottest scripts of the {@link ScriptCacheImpl}. The manifest is a UTF-8 text file with
+ * one script per line, in descending order of hits, formatted as {@code <hits> <path>}. Empty lines and lines starting with
+ * {@code #} are ignored.
+ */
+final class ScriptCacheManifest {
+
+    static final String FILE_NAME = "script-cache-manifest.txt";
+
+    private ScriptCacheManifest() {}
+
+    /**
+     * Reads a manifest.
+     *
+     * @param reader the reader for the manifest
+     * @return the scripts of the manifest mapped to their number of hits, in the order of the manifest
+     * @throws IOException if the manifest cannot be read or is malformed
+     */
+    static Map<String, Integer> read(final Reader reader) throws IOException {
+        final Map<String, Integer> scripts = new LinkedHashMap<>();
+        final BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            final int separator = line.indexOf(' ');
+            if (separator < 0) {
+                throw new IOException("Malformed script cache manifest line: " + line);
+            }
+            try {
+                scripts.putIfAbsent(
+                        line.substring(separator + 1).trim(), Integer.parseInt(line.substring(0, separator)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed script cache manifest line: " + line, e);
+            }
+        }
+        return scripts;
+    }
+
+    /**
+     * Writes a manifest.
+     *
+     * @param writer  the writer for the manifest
+     * @param scripts the scripts mapped to their number of hits, in descending order of hits
+     */
+    static void write(final Writer writer, final Map<String, Integer> scripts) throws IOException {
+        for (final Map.Entry<String, Integer> script : scripts.entrySet()) {
+            writer.write(Integer.toString(script.getValue()));
+            writer.write(' ');
+            writer.write(script.getKey());
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Returns the hottest scripts of a manifest, which may come from another node or have been edited by hand. Scripts with
+     * the same number of hits keep the order of the manifest.
+     *
+     * @param scripts the scripts mapped to their number of hits
+     * @param limit   the maximum number of scripts to return
+     * @return at most {@code limit} scripts mapped to their number of hits, in descending order of hits
+     */
+    static Map<String, Integer> getHottest(final Map<String, Integer> scripts, final int limit) {
+        final Map<String, Integer> hottest = new LinkedHashMap<>();
+        scripts.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .limit(Math.max(limit, 0))
+                .forEach(script -> hottest.put(script.getKey(), script.getValue()));
+        return hottest;
+    }
+
+    /**
+     * Reads a manifest file.
+     *
+     * @param file the manifest file
+     * @return the scripts of the manifest, or an empty map if the file doesn't exist
+     */
+    static Map<String, Integer> read(final File file) throws IOException {
+        if (!file.isFile()) {
+            return new LinkedHashMap<>();
+        }
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return read(reader);
+        }
+    }
+
+    /**
+     * Replaces a manifest file atomically, so that a crash while writing never leaves a truncated manifest behind.
+     *
+     * @param file    the manifest file
+     * @param scripts the scripts mapped to their number of hits, in descending order of hits
+     */
+    static void write(final File file, final Map<String, Integer> scripts) throws IOException {
+        final File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+            write(writer, scripts);
+        }
+        Files.move(
+                temporary.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.Compilable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.scripting.api.ScriptCache;
+import org.apache.sling.scripting.core.impl.jsr223.SlingScriptEngineManager;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fills the {@link ScriptCacheImpl} by compiling the scripts found under the search paths of the resource resolver, for all
+ * the extensions of the script engines that support compilation. The warm-up runs when the component is activated and every
+ * time the {@link ScriptCacheInvalidator} clears the cache, as long as it's enabled through the
+ * {@link ScriptCacheImplConfiguration}.
+ * <p>
+ * The hottest scripts of the cache can also be recorded in a {@link ScriptCacheManifest manifest} stored in the bundle data
+ * area. The scripts of the manifest are compiled first, hottest first, so that a restarted node is warm where it matters most
+ * even before, or without, walking the search paths. The manifest can be exported and imported, so that a new node can be
+ * warmed up from the manifest of a running one.
+ * <p>
+ * The search paths are walked by a single thread, while the scripts are compiled in parallel on the
+ * {@link ScriptCompilationScheduler}, at the lowest priority, so that a warm-up never delays the compilation of a script a
+ * request waits for. When a warm-up completes, a {@link Completed} marker service is registered, with the number of
+ * compiled scripts and the duration of the warm-up as service properties, so that readiness checks can wait for it.
+ */
+@Component(
+        immediate = true, // the warm-up starts on activation, not on the first lookup of the service
+        service = ScriptCacheWarmUp.class,
+        configurationPid = "org.apache.sling.scripting.core.impl.ScriptCacheImpl")
+public class ScriptCacheWarmUp {
+
+    /**
+     * The default maximum number of scripts compiled in parallel during a warm-up.
+     */
+    public static final int DEFAULT_WARM_UP_PARALLELISM = 4;
+
+    /**
+     * The default maximum number of scripts recorded in the manifest. {@code 0} disables the manifest.
+     */
+    public static final int DEFAULT_MANIFEST_SIZE = 0;
+
+    /**
+     * The service property of the {@link Completed} marker service holding the number of compiled scripts.
+     */
+    public static final String PROPERTY_COMPILED = "compiled";
+
+    /**
+     * The service property of the {@link Completed} marker service holding the number of scripts that failed to compile.
+     */
+    public static final String PROPERTY_FAILED = "failed";
+
+    /**
+     * The service property of the {@link Completed} marker service holding the number of scripts that were not cached, because
+     * their engine doesn't support compilation or because too many compilations were waiting for the
+     * {@link ScriptCompilationScheduler}.
+     */
+    public static final String PROPERTY_SKIPPED = "skipped";
+
+    /**
+     * The service property of the {@link Completed} marker service holding the duration of the warm-up in milliseconds.
+     */
+    public static final String PROPERTY_DURATION = "duration";
+
+    /**
+     * Marker service registered once the script cache was warmed up.
+     */
+    public interface Completed {}
+
+    enum State {
+        DISABLED,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScriptCacheWarmUp.class);
+
+    private static final long MANIFEST_SAVE_INTERVAL = 5;
+
+    private final SlingScriptEngineManager slingScriptEngineManager;
+    private final ScriptCache scriptCache;
+    private final ResourceResolverFactory resourceResolverFactory;
+    private final BundleContext bundleContext;
+    private final boolean enabled;
+    private final boolean walkSearchPaths;
+    private final int manifestSize;
+    private final int parallelism;
+    private final int maxScripts;
+    private final ScheduledExecutorService coordinator;
+
+    private final AtomicInteger discovered = new AtomicInteger();
+    private final AtomicInteger compiled = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private volatile State state = State.DISABLED;
+    private volatile long duration;
+    private volatile Semaphore permits;
+
+    private Future<?> currentWarmUp;
+    private ServiceRegistration<Completed> completedRegistration;
+
+    @Activate
+    public ScriptCacheWarmUp(
+            @Reference final SlingScriptEngineManager slingScriptEngineManager,
+            @Reference final ScriptCache scriptCache,
+            @Reference final ResourceResolverFactory resourceResolverFactory,
+            final ScriptCacheImplConfiguration configuration,
+            final BundleContext bundleContext) {
+        this.slingScriptEngineManager = slingScriptEngineManager;
+        this.scriptCache = scriptCache;
+        this.resourceResolverFactory = resourceResolverFactory;
+        this.bundleContext = bundleContext;
+        this.walkSearchPaths = configuration.org_apache_sling_scripting_cache_warm__up();
+        this.manifestSize = Math.max(configuration.org_apache_sling_scripting_cache_manifest__size(), 0);
+        this.enabled = (walkSearchPaths || manifestSize > 0) && scriptCache instanceof ScriptCacheImpl;
+        this.parallelism = Math.max(configuration.org_apache_sling_scripting_cache_warm__up__parallelism(), 1);
+        this.maxScripts = configuration.org_apache_sling_scripting_cache_size();
+        this.coordinator = enabled ? Executors.newSingleThreadScheduledExecutor() : null;
+        start();
+        if (enabled && manifestSize > 0) {
+            coordinator.scheduleWithFixedDelay(
+                    this::saveManifest, MANIFEST_SAVE_INTERVAL, MANIFEST_SAVE_INTERVAL, TimeUnit.MINUTES);
+        }
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        if (coordinator != null) {
+            coordinator.shutdownNow();
+            if (manifestSize > 0) {
+                saveManifest();
+            }
+        }
+        unregisterCompleted();
+    }
+
+    /**
+     * Tells if the manifest of the hottest scripts is enabled.
+     */
+    boolean isManifestEnabled() {
+        return enabled && manifestSize > 0;
+    }
+
+    /**
+     * Writes the manifest of the currently hottest scripts.
+     *
+     * @param writer the writer for the manifest
+     */
+    void exportManifest(final Writer writer) throws IOException {
+        ScriptCacheManifest.write(writer, ((ScriptCacheImpl) scriptCache).getHotScripts(manifestSize));
+    }
+
+    /**
+     * Replaces the stored manifest, for example with the one of another node, and starts a new warm-up from it. Only the
+     * hottest scripts of the imported manifest, up to the configured manifest size, are stored.
+     *
+     * @param reader the reader for the manifest
+     * @throws IOException if the manifest is malformed or cannot be stored
+     */
+    void importManifest(final Reader reader) throws IOException {
+        final Map<String, Integer> scripts =
+                ScriptCacheManifest.getHottest(ScriptCacheManifest.read(reader), manifestSize);
+        final File file = getManifestFile();
+        if (file == null) {
+            throw new IOException("The bundle data area is not available.");
+        }
+        ScriptCacheManifest.write(file, scripts);
+        LOGGER.info("Imported a script cache manifest with {} scripts.", scripts.size());
+        start();
+    }
+
+    /**
+     * Starts a new warm-up, cancelling the one in progress, if any. Does nothing if the warm-up is disabled.
+     */
+    synchronized void start() {
+        if (!enabled || coordinator.isShutdown()) {
+            return;
+        }
+        if (currentWarmUp != null) {
+            currentWarmUp.cancel(true);
+        }
+        unregisterCompleted();
+        state = State.RUNNING;
+        currentWarmUp = coordinator.submit(this::warmUp);
+    }
+
+    State getState() {
+        return state;
+    }
+
+    int getDiscoveredCount() {
+        return discovered.get();
+    }
+
+    int getCompiledCount() {
+        return compiled.get();
+    }
+
+    int getFailedCount() {
+        return failed.get();
+    }
+
+    int getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the duration of the last completed warm-up, in milliseconds.
+     */
+    long getDuration() {
+        return duration;
+    }
+
+    private void warmUp() {
+        discovered.set(0);
+        compiled.set(0);
+        failed.set(0);
+        skipped.set(0);
+        final long start = System.nanoTime();
+        final Set<String> extensions = getCompilableExtensions();
+        final Set<String> submitted = new HashSet<>();
+        // bounds the warm-up compilations waiting for the scheduler, which then never fill its queue
+        final Semaphore warmUpPermits = new Semaphore(parallelism);
+        permits = warmUpPermits;
+        try (ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(null)) {
+            if (manifestSize > 0) {
+                replayManifest(resolver, extensions, submitted, warmUpPermits);
+            }
+            if (walkSearchPaths) {
+                for (final String searchPath : resolver.getSearchPath()) {
+                    final Resource root = resolver.getResource(searchPath);
+                    if (root != null) {
+                        walk(root, extensions, submitted, warmUpPermits);
+                    }
+                }
+            }
+            while (!warmUpPermits.tryAcquire(parallelism, 1, TimeUnit.SECONDS)) {
+                LOGGER.debug("Compiled {} of {} scripts so far.", compiled.get(), discovered.get());
+            }
+            warmUpPermits.release(parallelism);
+            duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            completed();
+            LOGGER.info(
+                    "Warmed up the script cache with {} scripts in {}ms ({} scripts failed to compile, {} were not cached).",
+                    compiled.get(),
+                    duration,
+                    failed.get(),
+                    skipped.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permits = null;
+            LOGGER.debug("The script cache warm-up was cancelled.");
+        } catch (LoginException | RuntimeException e) {
+            permits = null;
+            state = State.FAILED;
+            LOGGER.error("Unable to warm up the script cache.", e);
+        }
+    }
+
+    /**
+     * Submits the scripts of the stored manifest, hottest first, so that they're compiled before the ones found by walking the
+     * search paths. Like the walk, the replay stops at the size of the cache.
+     */
+    private void replayManifest(
+            final ResourceResolver resolver,
+            final Set<String> extensions,
+            final Set<String> submitted,
+            final Semaphore warmUpPermits)
+            throws InterruptedException {
+        final File file = getManifestFile();
+        if (file == null) {
+            return;
+        }
+        final Map<String, Integer> scripts;
+        try {
+            scripts = ScriptCacheManifest.getHottest(ScriptCacheManifest.read(file), manifestSize);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read the script cache manifest {}.", file, e);
+            return;
+        }
+        for (final String path : scripts.keySet()) {
+            if (submitted.size() >= maxScripts) {
+                break;
+            }
+            final Resource resource = resolver.getResource(path);
+            final String extension = getExtension(ResourceUtil.getName(path));
+            if (resource != null && extension != null && extensions.contains(extension) && submitted.add(path)) {
+                discovered.incrementAndGet();
+                submit(resource, extension, warmUpPermits);
+            }
+        }
+        LOGGER.debug("Replayed {} scripts from the script cache manifest.", submitted.size());
+    }
+
+    private void walk(
+            final Resource resource,
+            final Set<String> extensions,
+            final Set<String> submitted,
+            final Semaphore warmUpPermits)
+            throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        final String extension = getExtension(resource.getName());
+        if (extension != null && extensions.contains(extension)) {
+            if (submitted.size() < maxScripts && submitted.add(resource.getPath())) {
+                discovered.incrementAndGet();
+                submit(resource, extension, warmUpPermits);
+            }
+            return;
+        }
+        final Iterator<Resource> children = resource.listChildren();
+        while (children.hasNext()) {
+            walk(children.next(), extensions, submitted, warmUpPermits);
+        }
+    }
+
+    /**
+     * Reads the source of a script on the walking thread, since resource resolvers are not thread-safe, and schedules its
+     * compilation once fewer than the configured parallelism of warm-up compilations are pending. Without a
+     * {@link ScriptCompilationScheduler}, the script is compiled on the walking thread.
+     */
+    private void submit(final Resource resource, final String extension, final Semaphore warmUpPermits)
+            throws InterruptedException {
+        final String path = resource.getPath();
+        final long contentLength = resource.getResourceMetadata().getContentLength();
+        final String source;
+        try (Reader reader = DefaultSlingScript.openScript(resource)) {
+            source = IOUtils.toString(reader);
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            LOGGER.debug("Unable to read script {}.", path, e);
+            return;
+        }
+        final ScriptCacheImpl cache = (ScriptCacheImpl) scriptCache;
+        // taken before the compilation, so that a script changed in the meantime isn't cached from its previous source
+        final long epoch = cache.getInvalidationEpoch(path);
+        final ScriptCompilationScheduler scheduler = cache.compilationScheduler;
+        if (scheduler == null) {
+            compile(cache, path, extension, source, contentLength, epoch);
+            return;
+        }
+        warmUpPermits.acquire();
+        final CompletableFuture<Boolean> compilation =
+                scheduler.submit(ScriptCompilationScheduler.PRIORITY_WARM_UP, () -> {
+                    // the compilations of a cancelled warm-up are dropped
+                    if (permits == warmUpPermits) {
+                        compile(cache, path, extension, source, contentLength, epoch);
+                    }
+                    return Boolean.TRUE;
+                });
+        compilation.whenComplete((result, e) -> {
+            if (result == null && e == null) {
+                // the scheduler rejected the compilation
+                skipped.incrementAndGet();
+            }
+            warmUpPermits.release();
+        });
+    }
+
+    /**
+     * Compiles a script through the same helper as the requests, so that it's loaded from or persisted to the compiled script
+     * store, shared with the scripts of the same source and recorded in the dependency graph, and caches it.
+     */
+    private void compile(
+            final ScriptCacheImpl cache,
+            final String path,
+            final String extension,
+            final String source,
+            final long contentLength,
+            final long epoch) {
+        if (cache.isCached(path)) {
+            compiled.incrementAndGet();
+            return;
+        }
+        final ScriptEngine scriptEngine = slingScriptEngineManager.getEngineByExtension(extension);
+        if (!(scriptEngine instanceof Compilable)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        try {
+            cache.putScriptIfCurrent(
+                    DefaultSlingScript.compile(cache, path, scriptEngine, new StringReader(source), contentLength),
+                    epoch);
+            compiled.incrementAndGet();
+        } catch (ScriptException | RuntimeException e) {
+            failed.incrementAndGet();
+            LOGGER.debug("Unable to compile script {} during the script cache warm-up.", path, e);
+        }
+    }
+
+    private Set<String> getCompilableExtensions() {
+        final Set<String> extensions = new TreeSet<>();
+        for (final ScriptEngineFactory factory : slingScriptEngineManager.getEngineFactories()) {
+            if (factory.getScriptEngine() instanceof Compilable) {
+                extensions.addAll(factory.getExtensions());
+            }
+        }
+        return extensions;
+    }
+
+    private static String getExtension(final String name) {
+        final int index = name.lastIndexOf('.');
+        return index > 0 && index < name.length() - 1 ? name.substring(index + 1) : null;
+    }
+
+    private File getManifestFile() {
+        return bundleContext.getDataFile(ScriptCacheManifest.FILE_NAME);
+    }
+
+    private void saveManifest() {
+        final File file = getManifestFile();
+        if (file == null) {
+            return;
+        }
+        final Map<String, Integer> scripts = ((ScriptCacheImpl) scriptCache).getHotScripts(manifestSize);
+        // keep the previous manifest instead of overwriting it with the one of a cold cache
+        if (scripts.isEmpty()) {
+            return;
+        }
+        try {
+            ScriptCacheManifest.write(file, scripts);
+            LOGGER.debug("Saved a script cache manifest with {} scripts.", scripts.size());
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save the script cache manifest {}.", file, e);
+        }
+    }
+
+    private synchronized void completed() {
+        if (Thread.currentThread().isInterrupted() || coordinator.isShutdown()) {
+            return;
+        }
+        state = State.COMPLETED;
+        final Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put(PROPERTY_COMPILED, compiled.get());
+        properties.put(PROPERTY_FAILED, failed.get());
+        properties.put(PROPERTY_SKIPPED, skipped.get());
+        properties.put(PROPERTY_DURATION, duration);
+        completedRegistration = bundleContext.registerService(Completed.class, new Completed() {}, properties);
+    }
+
+    private void unregisterCompleted() {
+        if (completedRegistration != null) {
+            try {
+                completedRegistration.unregister();
+            } catch (IllegalStateException e) {
+                // the bundle is being stopped
+            }
+            completedRegistration = null;
+        }
+    }
+}
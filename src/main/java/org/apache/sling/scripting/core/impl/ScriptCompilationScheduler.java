@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.ScriptException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.scripting.api.resource.ScriptingResourceResolverProvider;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs all script compilations on a bounded number of threads, so that a burst of compilations, for example after the script
+ * cache was cleared or a large package was installed, cannot take every core away from the request threads.
+ * <p>
+ * Waiting compilations are ordered by priority, the hottest scripts first, and a compilation that cannot start or complete
+ * within the configured timeout is given up by its caller, which interprets the script instead. A compilation that already
+ * started keeps running, so that its result can still be cached.
+ * <p>
+ * Compilations run outside of any request, so the request-scoped resource resolver a compilation may open on its thread is
+ * closed once the compilation is done.
+ */
+@Component(
+        service = ScriptCompilationScheduler.class,
+        configurationPid = "org.apache.sling.scripting.core.impl.ScriptCacheImpl")
+public class ScriptCompilationScheduler {
+
+    /**
+     * The default number of scripts compiled in parallel; {@code 0} uses the number of available processors.
+     */
+    public static final int DEFAULT_COMPILATION_PARALLELISM = 0;
+
+    /**
+     * The default number of milliseconds a caller waits for a compilation, whether scheduled by the caller or by another
+     * thread compiling the same script.
+     */
+    public static final long DEFAULT_COMPILATION_TIMEOUT = 5000;
+
+    /**
+     * The default maximum number of compilations waiting for a thread.
+     */
+    public static final int DEFAULT_COMPILATION_QUEUE_SIZE = 4096;
+
+    /**
+     * The priority of a compilation a request is waiting for. The frequency of the script is added to it.
+     */
+    public static final int PRIORITY_WAITING = FrequencySketch.MAX_FREQUENCY + 1;
+
+    /**
+     * The priority of a compilation no request is waiting for, such as the recompilation of a changed script.
+     */
+    public static final int PRIORITY_BACKGROUND = 0;
+
+    /**
+     * The priority of the compilation of a script found by a warm-up, which gives way to every other compilation.
+     */
+    public static final int PRIORITY_WARM_UP = -1;
+
+    /**
+     * Compiles a script.
+     *
+     * @param <T> the type of the compiled script
+     */
+    @FunctionalInterface
+    public interface Compilation<T> {
+        T compile() throws ScriptException;
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScriptCompilationScheduler.class);
+
+    private final ThreadPoolExecutor executor;
+    private final long timeout;
+    private final int queueSize;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final ThreadLocal<Boolean> compilationThread = new ThreadLocal<>();
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    volatile ScriptingResourceResolverProvider scriptingResourceResolverProvider;
+
+    @Activate
+    public ScriptCompilationScheduler(final ScriptCacheImplConfiguration configuration) {
+        final int configuredParallelism = configuration.org_apache_sling_scripting_cache_compilation__parallelism();
+        final int parallelism =
+                configuredParallelism > 0 ? configuredParallelism : Runtime.getRuntime().availableProcessors();
+        this.timeout = configuration.org_apache_sling_scripting_cache_compilation__timeout();
+        this.queueSize = Math.max(configuration.org_apache_sling_scripting_cache_compilation__queue__size(), 1);
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                parallelism, parallelism, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(
+                            () -> {
+                                compilationThread.set(Boolean.TRUE);
+                                runnable.run();
+                            },
+                            "sling-script-compiler-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }) {
+            @Override
+            protected void afterExecute(final Runnable runnable, final Throwable throwable) {
+                closeThreadResourceResolver();
+            }
+        };
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Schedules a compilation. A compilation scheduled from a compilation thread is run right away, so that a compilation
+     * depending on another one cannot starve the scheduler.
+     *
+     * @param priority    the priority of the compilation, the higher the sooner
+     * @param compilation the compilation
+     * @param <T>         the type of the compiled script
+     * @return the result of the compilation, completed with {@code null} if too many compilations are already waiting
+     */
+    public <T> CompletableFuture<T> submit(final int priority, final Compilation<T> compilation) {
+        final ScheduledCompilation<T> scheduled =
+                new ScheduledCompilation<>(priority, sequence.incrementAndGet(), compilation);
+        if (Boolean.TRUE.equals(compilationThread.get())) {
+            scheduled.run();
+        } else if (executor.getQueue().size() >= queueSize || executor.isShutdown()) {
+            rejectedCount.incrementAndGet();
+            LOGGER.debug("Too many scripts are waiting to be compiled, the compilation was rejected.");
+            scheduled.result.complete(null);
+        } else {
+            try {
+                executor.execute(scheduled);
+            } catch (RejectedExecutionException e) {
+                rejectedCount.incrementAndGet();
+                scheduled.result.complete(null);
+            }
+        }
+        return scheduled.result;
+    }
+
+    /**
+     * Schedules a compilation and waits for it, for at most the configured timeout.
+     *
+     * @param priority    the priority of the compilation, the higher the sooner
+     * @param compilation the compilation
+     * @param <T>         the type of the compiled script
+     * @return the compiled script, or {@code null} if the compilation was rejected or didn't complete in time
+     * @throws ScriptException if the compilation failed
+     */
+    public <T> T compile(final int priority, final Compilation<T> compilation) throws ScriptException {
+        return await(submit(priority, compilation));
+    }
+
+    /**
+     * Waits for a scheduled compilation, for at most the configured timeout. A compilation that didn't start in time is
+     * cancelled.
+     *
+     * @param result the result of the compilation, as returned by {@link #submit(int, Compilation)}
+     * @param <T>    the type of the compiled script
+     * @return the compiled script, or {@code null} if the compilation was rejected or didn't complete in time
+     * @throws ScriptException if the compilation failed
+     */
+    public <T> T await(final CompletableFuture<T> result) throws ScriptException {
+        try {
+            return timeout > 0 ? result.get(timeout, TimeUnit.MILLISECONDS) : result.get();
+        } catch (TimeoutException e) {
+            timedOutCount.incrementAndGet();
+            if (executor.getQueue().removeIf(task -> ((ScheduledCompilation<?>) task).result == result)) {
+                result.complete(null);
+            }
+            LOGGER.debug("A script compilation didn't complete within {}ms.", timeout);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ScriptException) {
+                throw (ScriptException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ScriptException(new Exception(cause));
+        }
+    }
+
+    /**
+     * Closes the request-scoped resource resolver opened by a compilation on the current thread. Compilations run from a
+     * compilation thread, right away, share the resolver of the compilation that scheduled them, which closes it.
+     */
+    private void closeThreadResourceResolver() {
+        final ScriptingResourceResolverProvider provider = scriptingResourceResolverProvider;
+        if (provider instanceof ScriptingResourceResolverProviderImpl) {
+            ((ScriptingResourceResolverProviderImpl) provider).closeThreadResourceResolver();
+        }
+    }
+
+    /**
+     * Returns the number of compilations waiting for a thread.
+     */
+    int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of compilations currently running.
+     */
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns how many times a caller stopped waiting for a compilation.
+     */
+    long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    /**
+     * Returns how many compilations were rejected because too many were waiting.
+     */
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private static final class ScheduledCompilation<T> implements Runnable, Comparable<ScheduledCompilation<?>> {
+
+        private final int priority;
+        private final long sequence;
+        private final Compilation<T> compilation;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        ScheduledCompilation(final int priority, final long sequence, final Compilation<T> compilation) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.compilation = compilation;
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                result.complete(compilation.compile());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            } catch (Error e) {
+                result.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public int compareTo(final ScheduledCompilation<?> other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.sling.scripting.core.ScriptDependencyRegistry;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Keeps the dependencies between scripts together with a reverse index, so that the scripts depending on a changed script
+ * are found without scanning the whole graph. The reverse index is sorted by path, like the path index of the
+ * {@link ScriptCacheImpl}, so that the dependents of a whole subtree can be found as well.
+ * <p>
+ * The graph is only updated when scripts are compiled or removed, so a single lock is enough. The dependencies registered
+ * while a script is compiled replace its previous dependencies once the compilation ends, so that the dependencies it no
+ * longer has are forgotten.
+ */
+@Component(service = {ScriptDependencyRegistry.class, ScriptDependencyGraph.class})
+public class ScriptDependencyGraph implements ScriptDependencyRegistry {
+
+    private final Map<String, Set<String>> dependencies = new HashMap<>();
+
+    private final TreeMap<String, Set<String>> dependents = new TreeMap<>();
+
+    private final ThreadLocal<Deque<Compilation>> compilations = ThreadLocal.withInitial(ArrayDeque::new);
+
+    @Override
+    public void addDependency(final String scriptPath, final String dependencyPath) {
+        final Compilation compilation = getCompilation(scriptPath);
+        if (compilation != null) {
+            compilation.dependencies.add(dependencyPath);
+        } else {
+            synchronized (this) {
+                link(scriptPath, dependencyPath);
+            }
+        }
+    }
+
+    @Override
+    public void setDependencies(final String scriptPath, final Collection<String> dependencyPaths) {
+        final Compilation compilation = getCompilation(scriptPath);
+        if (compilation != null) {
+            compilation.dependencies.clear();
+            compilation.dependencies.addAll(dependencyPaths);
+        } else {
+            replaceDependencies(scriptPath, dependencyPaths);
+        }
+    }
+
+    @Override
+    public synchronized Set<String> getDependencies(final String scriptPath) {
+        final Set<String> scriptDependencies = dependencies.get(scriptPath);
+        return scriptDependencies != null ? new TreeSet<>(scriptDependencies) : Collections.emptySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The scripts depending on a script located below the given path are returned as well, since removing a path removes its
+     * whole subtree.
+     */
+    @Override
+    public synchronized Set<String> getDependents(final String scriptPath) {
+        final Set<String> result = new TreeSet<>();
+        final Deque<String> pending = new ArrayDeque<>();
+        pending.add(scriptPath);
+        while (!pending.isEmpty()) {
+            final String path = pending.poll();
+            final Set<String> direct = new TreeSet<>();
+            addAll(direct, dependents.get(path));
+            // all paths starting with "path/" sort between "path/" (inclusive) and "path0" (exclusive)
+            for (final Set<String> subtreeDependents : dependents.subMap(path + "/", path + "0").values()) {
+                addAll(direct, subtreeDependents);
+            }
+            for (final String dependent : direct) {
+                if (!dependent.equals(scriptPath) && result.add(dependent)) {
+                    pending.add(dependent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the dependencies of a removed script. The scripts depending on it keep their dependency, so that they're evicted
+     * again if the script is added back.
+     *
+     * @param scriptPath the path of the removed script
+     */
+    synchronized void removeDependencies(final String scriptPath) {
+        final Set<String> scriptDependencies = dependencies.remove(scriptPath);
+        if (scriptDependencies == null) {
+            return;
+        }
+        for (final String dependencyPath : scriptDependencies) {
+            final Set<String> dependencyDependents = dependents.get(dependencyPath);
+            if (dependencyDependents != null) {
+                dependencyDependents.remove(scriptPath);
+                if (dependencyDependents.isEmpty()) {
+                    dependents.remove(dependencyPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the start of the compilation of a script on the current thread. Until the compilation ends, the dependencies
+     * registered for the script are collected, and a script compiled while another one is being compiled on the same thread
+     * becomes a dependency of the other script.
+     *
+     * @param scriptPath the path of the compiled script
+     */
+    void startCompilation(final String scriptPath) {
+        final Deque<Compilation> stack = compilations.get();
+        final Compilation compiling = stack.peek();
+        if (compiling != null) {
+            compiling.dependencies.add(scriptPath);
+        }
+        stack.push(new Compilation(scriptPath));
+    }
+
+    /**
+     * Marks the end of the compilation started last on the current thread, replacing the dependencies of its script with the
+     * ones collected during the compilation.
+     */
+    void endCompilation() {
+        final Deque<Compilation> stack = compilations.get();
+        final Compilation compilation = stack.poll();
+        if (stack.isEmpty()) {
+            compilations.remove();
+        }
+        if (compilation != null) {
+            replaceDependencies(compilation.scriptPath, compilation.dependencies);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the graph, mapping each script with dependencies to the scripts it depends on.
+     */
+    synchronized Map<String, Set<String>> getGraph() {
+        final Map<String, Set<String>> graph = new TreeMap<>();
+        for (final Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+            graph.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+        }
+        return graph;
+    }
+
+    private synchronized void replaceDependencies(final String scriptPath, final Collection<String> dependencyPaths) {
+        removeDependencies(scriptPath);
+        for (final String dependencyPath : dependencyPaths) {
+            link(scriptPath, dependencyPath);
+        }
+    }
+
+    private void link(final String scriptPath, final String dependencyPath) {
+        if (scriptPath.equals(dependencyPath)) {
+            return;
+        }
+        dependencies.computeIfAbsent(scriptPath, key -> new TreeSet<>()).add(dependencyPath);
+        dependents.computeIfAbsent(dependencyPath, key -> new TreeSet<>()).add(scriptPath);
+    }
+
+    /**
+     * Returns the compilation of the given script running on the current thread, if it's the innermost one.
+     */
+    private Compilation getCompilation(final String scriptPath) {
+        final Deque<Compilation> stack = compilations.get();
+        final Compilation compilation = stack.peek();
+        if (compilation == null) {
+            compilations.remove();
+            return null;
+        }
+        return compilation.scriptPath.equals(scriptPath) ? compilation : null;
+    }
+
+    private static void addAll(final Set<String> target, final Set<String> paths) {
+        if (paths != null) {
+            target.addAll(paths);
+        }
+    }
+
+    private static final class Compilation {
+
+        private final String scriptPath;
+        private final Set<String> dependencies = new TreeSet<>();
+
+        Compilation(final String scriptPath) {
+            this.scriptPath = scriptPath;
+        }
+    }
+}
@@ -27,10 +27,12 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.felix.webconsole.AbstractWebConsolePlugin;
 import org.apache.felix.webconsole.WebConsoleConstants;
 import org.apache.sling.scripting.core.impl.jsr223.SlingScriptEngineManager;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
@@ -97,6 +99,30 @@ public class ScriptEngineConsolePlugin extends AbstractWebConsolePlugin {
 
             pw.print("- Names : ");
             printArray(pw, factory.getNames());
+
+            pw.print("- Instances created : ");
+            pw.println(slingScriptEngineManager.getInstantiationCount(factory));
+        }
+
+        pw.println();
+        pw.println("Script Engine Discovery");
+        pw.println("=======================");
+        pw.println();
+        if (!slingScriptEngineManager.isDiscoveryComplete()) {
+            pw.println("The script engine factories are still being discovered.");
+        }
+        final Map<Bundle, Long> discoveryTimes = slingScriptEngineManager.getDiscoveryTimes();
+        if (discoveryTimes.isEmpty()) {
+            pw.println("No bundle provides script engine factories.");
+        }
+        for (Map.Entry<Bundle, Long> entry : discoveryTimes.entrySet()) {
+            pw.print("- ");
+            pw.print(entry.getKey().getSymbolicName());
+            pw.print(" (");
+            pw.print(entry.getKey().getBundleId());
+            pw.print(") : ");
+            pw.print(entry.getValue());
+            pw.println("ms");
         }
         pw.println("</pre>");
         pw.println("</div>");
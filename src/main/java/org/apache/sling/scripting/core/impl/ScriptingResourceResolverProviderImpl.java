@@ -103,6 +103,14 @@ public class ScriptingResourceResolverProviderImpl
 
     @Override
     public void requestDestroyed(ServletRequestEvent sre) {
+        closeThreadResourceResolver();
+    }
+
+    /**
+     * Closes the resource resolver scoped to the current thread, if one was opened. Threads outside of a request, like the
+     * ones compiling scripts, have to close it themselves once their task is done.
+     */
+    void closeThreadResourceResolver() {
         ScriptingResourceResolver scriptingResourceResolver = perThreadResourceResolver.get();
         if (scriptingResourceResolver != null) {
             scriptingResourceResolver._close();
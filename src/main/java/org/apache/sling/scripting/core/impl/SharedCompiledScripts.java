@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.scripting.core.impl.helper.CachedScriptImpl;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Shares one {@link CompiledScript} between all the scripts with an identical source compiled by the same script engine, for
+ * example a component script copied under several paths, or the same bundled script provided by several bundle versions.
+ * Compiled scripts are looked up by a hash of the engine name, the engine version and the source.
+ * <p>
+ * The shared compiled scripts are only weakly referenced, so a compiled script is forgotten once none of the caches holding
+ * it retain it anymore. Since a shared compiled script was compiled under the name of the first script with that source,
+ * sharing is only enabled through the {@link ScriptCacheImplConfiguration} for engines whose compiled scripts don't depend on
+ * the script name.
+ */
+@Component(
+        service = SharedCompiledScripts.class,
+        configurationPid = "org.apache.sling.scripting.core.impl.ScriptCacheImpl")
+public class SharedCompiledScripts {
+
+    /**
+     * Compiles a script that's not shared yet.
+     */
+    @FunctionalInterface
+    public interface Compiler {
+        CompiledScript compile() throws ScriptException;
+    }
+
+    private final boolean enabled;
+
+    private final ConcurrentHashMap<String, SharedReference> compiledScripts = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<CompiledScript> collected = new ReferenceQueue<>();
+
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    private final AtomicLong savedWeight = new AtomicLong();
+
+    @Activate
+    public SharedCompiledScripts(final ScriptCacheImplConfiguration configuration) {
+        this.enabled = configuration.org_apache_sling_scripting_cache_content__sharing();
+    }
+
+    /**
+     * Tells if compiled scripts are shared.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the compiled script shared by the scripts with the given source, compiling it if it's not shared yet.
+     *
+     * @param scriptEngine the engine compiling the script
+     * @param source       the source of the script
+     * @param compiler     compiles the script, if it's not shared yet
+     * @return the shared compiled script
+     * @throws ScriptException if the script cannot be compiled
+     */
+    public CompiledScript getOrCompile(final ScriptEngine scriptEngine, final String source, final Compiler compiler)
+            throws ScriptException {
+        if (!enabled) {
+            return compiler.compile();
+        }
+        purge();
+        final ScriptEngineFactory factory = scriptEngine.getFactory();
+        final String key = CompiledScriptStore.hash(factory.getEngineName(), factory.getEngineVersion(), source);
+        final SharedReference shared = compiledScripts.get(key);
+        CompiledScript compiledScript = shared != null ? shared.get() : null;
+        if (compiledScript != null) {
+            recordSharing(source, factory);
+            return compiledScript;
+        }
+        compiledScript = compiler.compile();
+        final SharedReference reference = new SharedReference(key, compiledScript, collected);
+        while (true) {
+            final SharedReference previous = compiledScripts.putIfAbsent(key, reference);
+            if (previous == null) {
+                return compiledScript;
+            }
+            final CompiledScript concurrentlyCompiled = previous.get();
+            if (concurrentlyCompiled != null) {
+                // another thread compiled the same source in the meantime
+                recordSharing(source, factory);
+                return concurrentlyCompiled;
+            }
+            if (compiledScripts.replace(key, previous, reference)) {
+                return compiledScript;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of distinct compiled scripts currently shared.
+     */
+    int getDistinctCount() {
+        purge();
+        return compiledScripts.size();
+    }
+
+    /**
+     * Returns how many times a compiled script was reused instead of being compiled again.
+     */
+    long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /**
+     * Returns the estimated number of bytes saved by reusing compiled scripts instead of compiling them again.
+     */
+    long getSavedWeight() {
+        return savedWeight.get();
+    }
+
+    private void recordSharing(final String source, final ScriptEngineFactory factory) {
+        sharedCount.incrementAndGet();
+        savedWeight.addAndGet(CachedScriptImpl.estimateWeight(source.length(), factory));
+    }
+
+    private void purge() {
+        SharedReference reference;
+        while ((reference = (SharedReference) collected.poll()) != null) {
+            compiledScripts.remove(reference.key, reference);
+        }
+    }
+
+    private static final class SharedReference extends WeakReference<CompiledScript> {
+
+        private final String key;
+
+        SharedReference(
+                final String key, final CompiledScript compiledScript, final ReferenceQueue<CompiledScript> queue) {
+            super(compiledScript, queue);
+            this.key = key;
+        }
+    }
+}
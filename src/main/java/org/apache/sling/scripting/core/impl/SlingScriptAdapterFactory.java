@@ -19,6 +19,7 @@
 package org.apache.sling.scripting.core.impl;
 
 import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
 
 import java.util.Collection;
 import java.util.List;
@@ -136,9 +137,10 @@ public class SlingScriptAdapterFactory implements AdapterFactory, MimeTypeProvid
     @Override
     public String getMimeType(String name) {
         name = name.substring(name.lastIndexOf('.') + 1);
-        ScriptEngine se = scriptEngineManager.getEngineByExtension(name);
-        if (se != null) {
-            List<?> mimeTypes = se.getFactory().getMimeTypes();
+        // look up the factory only, creating an engine would be wasted
+        ScriptEngineFactory factory = scriptEngineManager.getEngineFactoryByExtension(name);
+        if (factory != null) {
+            List<?> mimeTypes = factory.getMimeTypes();
             if (mimeTypes != null && !mimeTypes.isEmpty()) {
                 return String.valueOf(mimeTypes.get(0));
             }
@@ -158,9 +160,9 @@ public class SlingScriptAdapterFactory implements AdapterFactory, MimeTypeProvid
      */
     @Override
     public String getExtension(String mimeType) {
-        ScriptEngine se = scriptEngineManager.getEngineByMimeType(mimeType);
-        if (se != null) {
-            List<?> extensions = se.getFactory().getExtensions();
+        ScriptEngineFactory factory = scriptEngineManager.getEngineFactoryByMimeType(mimeType);
+        if (factory != null) {
+            List<?> extensions = factory.getExtensions();
             if (extensions != null && !extensions.isEmpty()) {
                 return String.valueOf(extensions.get(0));
             }
@@ -29,7 +29,9 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.sling.api.resource.type.ResourceType;
 import org.apache.sling.commons.compiler.source.JavaEscapeHelper;
+import org.apache.sling.scripting.core.impl.ScriptCompilationScheduler;
 import org.apache.sling.scripting.core.impl.ServiceCache;
+import org.apache.sling.scripting.core.impl.SharedCompiledScripts;
 import org.apache.sling.scripting.spi.bundle.BundledRenderUnit;
 import org.apache.sling.scripting.spi.bundle.BundledRenderUnitCapability;
 import org.apache.sling.scripting.spi.bundle.BundledRenderUnitFinder;
@@ -51,6 +53,12 @@ public class BundleRenderUnitFinderImpl implements BundledRenderUnitFinder, Bund
     @Reference
     ScriptContextProvider scriptContextProvider;
 
+    @Reference
+    SharedCompiledScripts sharedCompiledScripts;
+
+    @Reference
+    ScriptCompilationScheduler compilationScheduler;
+
     private static final String NS_JAVAX_SCRIPT_CAPABILITY = "javax.script";
     private static final String SLASH = "/";
     private static final String DOT = ".";
@@ -146,7 +154,9 @@ public class BundleRenderUnitFinderImpl implements BundledRenderUnitFinder, Bund
                         scriptEngineName,
                         scriptExtension,
                         scriptContextProvider,
-                        serviceCache);
+                        serviceCache,
+                        sharedCompiledScripts,
+                        compilationScheduler);
             }
         }
         return null;
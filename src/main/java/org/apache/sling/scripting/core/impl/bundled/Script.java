@@ -31,12 +31,15 @@ import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.sling.scripting.core.ScriptNameAwareReader;
+import org.apache.sling.scripting.core.impl.ScriptCompilationScheduler;
 import org.apache.sling.scripting.core.impl.ServiceCache;
+import org.apache.sling.scripting.core.impl.SharedCompiledScripts;
 import org.apache.sling.scripting.spi.bundle.TypeProvider;
 import org.jetbrains.annotations.NotNull;
 import org.osgi.framework.Bundle;
@@ -46,9 +49,12 @@ class Script extends AbstractBundledRenderUnit {
 
     private final URL url;
     private String sourceCode;
-    private CompiledScript compiledScript = null;
+    private volatile CompiledScript compiledScript = null;
+    private CompletableFuture<CompiledScript> pendingCompilation = null;
     private Lock compilationLock = new ReentrantLock();
     private Lock readLock = new ReentrantLock();
+    private final SharedCompiledScripts sharedCompiledScripts;
+    private final ScriptCompilationScheduler compilationScheduler;
 
     Script(
             @NotNull Set<TypeProvider> providers,
@@ -59,9 +65,13 @@ class Script extends AbstractBundledRenderUnit {
             @NotNull String scriptEngineName,
             @NotNull String scriptExtension,
             @NotNull ScriptContextProvider scriptContextProvider,
-            @NotNull ServiceCache serviceCache) {
+            @NotNull ServiceCache serviceCache,
+            @NotNull SharedCompiledScripts sharedCompiledScripts,
+            @NotNull ScriptCompilationScheduler compilationScheduler) {
         super(providers, context, bundle, path, scriptEngineName, scriptExtension, scriptContextProvider, serviceCache);
         this.url = url;
+        this.sharedCompiledScripts = sharedCompiledScripts;
+        this.compilationScheduler = compilationScheduler;
     }
 
     private String getSourceCode() throws IOException {
@@ -96,26 +106,16 @@ class Script extends AbstractBundledRenderUnit {
     @Override
     public void eval(@NotNull ScriptEngine scriptEngine, @NotNull ScriptContext context) throws ScriptException {
         try {
-            if (scriptEngine instanceof Compilable
-                    && (compiledScript == null
-                            || !scriptEngine
-                                    .getFactory()
-                                    .equals(compiledScript.getEngine().getFactory()))) {
-                compilationLock.lock();
-                try {
-                    if (compiledScript == null
-                            || !scriptEngine
-                                    .getFactory()
-                                    .equals(compiledScript.getEngine().getFactory())) {
-                        compiledScript = ((Compilable) scriptEngine)
-                                .compile(new ScriptNameAwareReader(new StringReader(getSourceCode()), getName()));
-                    }
-                } finally {
-                    compilationLock.unlock();
+            CompiledScript script = compiledScript;
+            if (scriptEngine instanceof Compilable && !isCompiledBy(script, scriptEngine)) {
+                // without a compiled script in time, the script is interpreted
+                final CompiledScript compiled = compilationScheduler.await(getPendingCompilation(scriptEngine));
+                if (compiled != null) {
+                    script = compiled;
                 }
             }
-            if (compiledScript != null) {
-                compiledScript.eval(context);
+            if (script != null && isCompiledBy(script, scriptEngine)) {
+                script.eval(context);
             } else {
                 scriptEngine.eval(getSourceCode(), context);
             }
@@ -123,4 +123,52 @@ class Script extends AbstractBundledRenderUnit {
             throw new ScriptException(e);
         }
     }
+
+    /**
+     * Returns the pending compilation of this script, scheduling it if none is pending, so that concurrent requests wait for
+     * the same compilation without holding the compilation lock while waiting.
+     */
+    private CompletableFuture<CompiledScript> getPendingCompilation(ScriptEngine scriptEngine) throws IOException {
+        compilationLock.lock();
+        try {
+            CompletableFuture<CompiledScript> pending = pendingCompilation;
+            if (pending == null) {
+                final String source = getSourceCode();
+                pending = compilationScheduler.submit(ScriptCompilationScheduler.PRIORITY_WAITING, () -> {
+                    // a waiting request interprets the script with its own engine if the compilation doesn't complete in
+                    // time, so the script is compiled with a separate engine
+                    final ScriptEngine engine = scriptEngine.getFactory().getScriptEngine();
+                    final ScriptEngine compilingEngine = engine instanceof Compilable ? engine : scriptEngine;
+                    return sharedCompiledScripts.getOrCompile(
+                            compilingEngine, source, () -> compile(compilingEngine, source));
+                });
+                pendingCompilation = pending;
+                final CompletableFuture<CompiledScript> submitted = pending;
+                pending.whenComplete((compiled, e) -> {
+                    compilationLock.lock();
+                    try {
+                        if (compiled != null) {
+                            compiledScript = compiled;
+                        }
+                        if (pendingCompilation == submitted) {
+                            pendingCompilation = null;
+                        }
+                    } finally {
+                        compilationLock.unlock();
+                    }
+                });
+            }
+            return pending;
+        } finally {
+            compilationLock.unlock();
+        }
+    }
+
+    private CompiledScript compile(ScriptEngine scriptEngine, String source) throws ScriptException {
+        return ((Compilable) scriptEngine).compile(new ScriptNameAwareReader(new StringReader(source), getName()));
+    }
+
+    private static boolean isCompiledBy(CompiledScript script, ScriptEngine scriptEngine) {
+        return script != null && scriptEngine.getFactory().equals(script.getEngine().getFactory());
+    }
 }
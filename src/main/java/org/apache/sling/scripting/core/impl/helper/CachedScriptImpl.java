@@ -19,17 +19,59 @@
 package org.apache.sling.scripting.core.impl.helper;
 
 import javax.script.CompiledScript;
+import javax.script.ScriptEngineFactory;
 
 import org.apache.sling.scripting.api.CachedScript;
 
 public class CachedScriptImpl implements CachedScript {
 
+    /**
+     * The name of an optional {@link ScriptEngineFactory#getParameter(String)} parameter through which a script engine can hint
+     * how many bytes of heap its compiled scripts retain per byte of script source. The value has to be a {@link Number}.
+     */
+    public static final String WEIGHT_FACTOR_PARAMETER = "org.apache.sling.scripting.cache.weight.factor";
+
+    /**
+     * The weight factor used for script engines that don't provide the {@link #WEIGHT_FACTOR_PARAMETER} parameter.
+     */
+    public static final double DEFAULT_WEIGHT_FACTOR = 4;
+
     private String scriptPath;
     private CompiledScript compiledScript;
+    private long weight;
 
     public CachedScriptImpl(String scriptPath, CompiledScript compiledScript) {
+        this(scriptPath, compiledScript, 0);
+    }
+
+    /**
+     * @param scriptPath     the path of the script
+     * @param compiledScript the compiled script
+     * @param weight         the estimated number of bytes retained by the compiled script; {@code 0} if unknown
+     */
+    public CachedScriptImpl(String scriptPath, CompiledScript compiledScript, long weight) {
         this.scriptPath = scriptPath;
         this.compiledScript = compiledScript;
+        this.weight = weight;
+    }
+
+    /**
+     * Estimates the number of bytes retained by a compiled script.
+     *
+     * @param sourceLength the length of the script source in bytes; negative if unknown
+     * @param factory      the factory of the script engine that compiled the script
+     * @return the estimated weight or {@code 0} if it cannot be estimated
+     */
+    public static long estimateWeight(long sourceLength, ScriptEngineFactory factory) {
+        if (sourceLength < 0) {
+            return 0;
+        }
+        double factor = DEFAULT_WEIGHT_FACTOR;
+        final Object hint = factory == null ? null : factory.getParameter(WEIGHT_FACTOR_PARAMETER);
+        if (hint instanceof Number && ((Number) hint).doubleValue() > 0) {
+            factor = ((Number) hint).doubleValue();
+        }
+        return (long) (sourceLength * factor);
     }
 
     public String getScriptPath() {
@@ -39,4 +81,8 @@ public class CachedScriptImpl implements CachedScript {
     public CompiledScript getCompiledScript() {
         return compiledScript;
     }
+
+    public long getWeight() {
+        return weight;
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl.jsr223;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the {@link ScriptEngine}s of a {@link ScriptEngineFactory}, reusing them as far as the {@code THREADING} parameter of
+ * the factory allows:
+ * <ul>
+ *     <li>{@code MULTITHREADED} and {@code STATELESS} engines can be used concurrently, so a single engine is shared;</li>
+ *     <li>{@code THREAD-ISOLATED} engines and engines that are not thread-safe are kept per thread, for at most the configured
+ *     number of threads; other threads get a new engine every time.</li>
+ * </ul>
+ * Scripts are evaluated with their own {@code ScriptContext}, so the state of a reused engine doesn't leak between
+ * evaluations.
+ * <p>
+ * The per-thread engines are kept by the provider rather than in the threads themselves, so that {@link #clear()} releases
+ * them, and the classes of their factory, once the provider is replaced.
+ */
+final class ScriptEngineProvider {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScriptEngineProvider.class);
+
+    private static final String THREADING = "THREADING";
+
+    private final ScriptEngineFactory factory;
+
+    private final boolean shared;
+
+    private final int maxThreadEngines;
+
+    private final AtomicLong instantiations = new AtomicLong();
+
+    private volatile ScriptEngine sharedEngine;
+
+    private volatile boolean cleared;
+
+    // the engines kept per thread; the engines of threads that ended are dropped by the weak keys
+    private final Map<Thread, ScriptEngine> threadEngines = new WeakHashMap<>();
+
+    /**
+     * @param factory          the factory creating the engines
+     * @param maxThreadEngines the maximum number of threads keeping their own engine, {@code 0} to never reuse engines that
+     *                         cannot be shared
+     */
+    ScriptEngineProvider(@NotNull final ScriptEngineFactory factory, final int maxThreadEngines) {
+        this.factory = factory;
+        this.maxThreadEngines = maxThreadEngines;
+        Object threading;
+        try {
+            threading = factory.getParameter(THREADING);
+        } catch (RuntimeException e) {
+            LOGGER.debug("Unable to read the threading model of script engine factory {}.", factory.getEngineName(), e);
+            threading = null;
+        }
+        this.shared = "MULTITHREADED".equals(threading) || "STATELESS".equals(threading);
+    }
+
+    /**
+     * Returns an engine of the factory, either shared, kept for the current thread or new.
+     *
+     * @return the engine
+     */
+    ScriptEngine getScriptEngine() {
+        if (cleared) {
+            return createScriptEngine();
+        }
+        if (shared) {
+            ScriptEngine engine = sharedEngine;
+            if (engine == null) {
+                synchronized (this) {
+                    engine = sharedEngine;
+                    if (engine == null) {
+                        engine = createScriptEngine();
+                        sharedEngine = engine;
+                    }
+                }
+            }
+            return engine;
+        }
+        if (maxThreadEngines <= 0) {
+            return createScriptEngine();
+        }
+        final Thread thread = Thread.currentThread();
+        synchronized (threadEngines) {
+            final ScriptEngine engine = threadEngines.get(thread);
+            if (engine != null) {
+                return engine;
+            }
+        }
+        final ScriptEngine engine = createScriptEngine();
+        synchronized (threadEngines) {
+            if (threadEngines.size() < maxThreadEngines) {
+                threadEngines.put(thread, engine);
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Releases the engines kept by this provider, once it was replaced. Threads still using it get a new engine every time.
+     */
+    void clear() {
+        cleared = true;
+        synchronized (threadEngines) {
+            threadEngines.clear();
+        }
+        sharedEngine = null;
+    }
+
+    /**
+     * Returns the maximum number of threads keeping their own engine.
+     */
+    int getMaxThreadEngines() {
+        return maxThreadEngines;
+    }
+
+    /**
+     * Returns the factory of the provided engines.
+     */
+    ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Returns how many engines were created so far.
+     */
+    long getInstantiationCount() {
+        return instantiations.get();
+    }
+
+    private ScriptEngine createScriptEngine() {
+        instantiations.incrementAndGet();
+        return factory.getScriptEngine();
+    }
+}
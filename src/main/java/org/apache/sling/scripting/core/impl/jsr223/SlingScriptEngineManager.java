@@ -23,19 +23,33 @@ import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.sling.api.scripting.SlingScriptConstants;
 import org.osgi.framework.Bundle;
@@ -89,16 +103,63 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
                 description =
                         "A script engine with a short name that matches any of these (optional) expressions is NOT included, even if it was accepted by the 'Includes' configuration")
         String[] excludes();
+
+        @AttributeDefinition(
+                name = "Engine Pool Size",
+                description =
+                        "The maximum number of threads keeping their own instance of a script engine that is thread-isolated or not thread-safe, per script engine factory. Other threads get a new instance whenever they need one. 0 creates a new instance every time. Multithreaded and stateless engines are always shared.")
+        int engine_pool_size() default 0;
+
+        @AttributeDefinition(
+                name = "Update Delay",
+                description =
+                        "The number of milliseconds the script engine factories have to stay unchanged before the manager announces that they were updated, so that a burst of bundle or service changes is announced only once. A burst that doesn't settle is announced after ten times this delay. 0 announces every change right away.")
+        int update_delay() default 100;
+
+        @AttributeDefinition(
+                name = "Discovery Threads",
+                description =
+                        "The number of threads discovering the script engine factories of the bundles already started when the manager is activated. 0 uses the number of available processors.")
+        int discovery_threads() default 0;
+
+        @AttributeDefinition(
+                name = "Discovery Wait",
+                description =
+                        "The maximum number of milliseconds a script engine lookup that cannot be answered yet waits for the initial discovery of the script engine factories before giving up.")
+        int discovery_wait() default 500;
     }
 
     private ScriptEngineManager internalManager;
 
-    private final Set<Bundle> engineSpiBundles = new HashSet<>();
+    private List<ScriptEngineFactory> platformFactories;
+
+    private final Map<Bundle, List<ScriptEngineFactory>> spiFactories = new HashMap<>();
 
-    private final Set<ServiceReference<ScriptEngineFactory>> serviceReferences = new HashSet<>();
+    private final Map<ServiceReference<ScriptEngineFactory>, SortableScriptEngineFactory> serviceFactories =
+            new HashMap<>();
 
     private final SortedSet<SortableScriptEngineFactory> factories = new TreeSet<>();
 
+    private final Map<String, ScriptEngineFactory> registeredNames = new HashMap<>();
+
+    private final Map<String, ScriptEngineFactory> registeredMimeTypes = new HashMap<>();
+
+    private final Map<String, ScriptEngineFactory> registeredExtensions = new HashMap<>();
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private int enginePoolSize;
+
+    private volatile UpdateDebouncer updateDebouncer;
+
+    private long discoveryWait;
+
+    private ExecutorService discoveryExecutor;
+
+    private final CompletableFuture<Void> discovery = new CompletableFuture<>();
+
+    private final Map<Bundle, Long> discoveryTimes = new ConcurrentHashMap<>();
+
     private BundleContext bundleContext;
 
     @Reference(
@@ -122,104 +183,85 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
 
     @Override
     public ScriptEngine getEngineByName(String shortName) {
-        readWriteLock.readLock().lock();
-        try {
-            SortableScriptEngineFactory ssef = factories.stream()
-                    .filter(factory -> factory.getNames().contains(shortName))
-                    .findFirst()
-                    .orElse(null);
-            return ssef == null ? null : ssef.getScriptEngine();
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        final Snapshot current = getSnapshot(candidate -> candidate.byName.containsKey(shortName));
+        return current.getScriptEngine(first(current.byName.get(shortName)));
     }
 
     public List<ScriptEngine> getEnginesByName(final String shortName) {
-        readWriteLock.readLock().lock();
-        try {
-            return factories.stream()
-                    // first, check exact match of short names
-                    .filter(factory -> factory.getNames().contains(shortName)
-                            ||
-                            // then, check contains match of long name
-                            //   for backward compatibility
-                            factory.getEngineName().contains(shortName))
-                    .map(factory -> factory.getDelegate().getScriptEngine())
-                    .collect(Collectors.toList());
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        final Predicate<SortableScriptEngineFactory> matches = factory ->
+                // first, check exact match of short names
+                factory.getNames().contains(shortName)
+                        ||
+                        // then, check contains match of long name
+                        //   for backward compatibility
+                        factory.getEngineName().contains(shortName);
+        final Snapshot current = getSnapshot(candidate ->
+                candidate.registeredNames.containsKey(shortName) || candidate.factories.stream().anyMatch(matches));
+        return Stream.concat(
+                        Stream.of(current.registeredNames.get(shortName)).filter(Objects::nonNull),
+                        current.factories.stream().filter(matches))
+                .map(current::getScriptEngine)
+                .collect(Collectors.toList());
     }
 
     @Override
     public ScriptEngine getEngineByExtension(String extension) {
-        readWriteLock.readLock().lock();
-        try {
-            SortableScriptEngineFactory ssef = factories.stream()
-                    .filter(factory -> factory.getExtensions().contains(extension))
-                    .findFirst()
-                    .orElse(null);
-            return ssef == null ? null : ssef.getScriptEngine();
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        final Snapshot current = getSnapshot(candidate -> candidate.byExtension.containsKey(extension));
+        return current.getScriptEngine(first(current.byExtension.get(extension)));
     }
 
     public List<ScriptEngine> getEnginesByExtension(final String extension) {
-        readWriteLock.readLock().lock();
-        try {
-            return factories.stream()
-                    .filter(factory -> factory.getExtensions().contains(extension))
-                    .map(factory -> factory.getDelegate().getScriptEngine())
-                    .collect(Collectors.toList());
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        final Snapshot current = getSnapshot(candidate -> candidate.byExtension.containsKey(extension));
+        return current.getScriptEngines(current.byExtension.get(extension));
+    }
+
+    /**
+     * Returns the factory of the engine {@link #getEngineByExtension(String)} would return, without creating an engine.
+     *
+     * @param extension the extension
+     * @return the factory, or {@code null} if no factory supports the extension
+     */
+    public ScriptEngineFactory getEngineFactoryByExtension(final String extension) {
+        return first(getSnapshot(candidate -> candidate.byExtension.containsKey(extension))
+                .byExtension
+                .get(extension));
     }
 
     @Override
     public ScriptEngine getEngineByMimeType(String mimeType) {
-        readWriteLock.readLock().lock();
-        try {
-            SortableScriptEngineFactory ssef = factories.stream()
-                    .filter(factory -> factory.getMimeTypes().contains(mimeType))
-                    .findFirst()
-                    .orElse(null);
-            return ssef == null ? null : ssef.getScriptEngine();
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        final Snapshot current = getSnapshot(candidate -> candidate.byMimeType.containsKey(mimeType));
+        return current.getScriptEngine(first(current.byMimeType.get(mimeType)));
     }
 
     public List<ScriptEngine> getEnginesByMimeType(final String mimeType) {
-        readWriteLock.readLock().lock();
-        try {
-            return factories.stream()
-                    .filter(factory -> factory.getMimeTypes().contains(mimeType))
-                    .map(factory -> factory.getDelegate().getScriptEngine())
-                    .collect(Collectors.toList());
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        final Snapshot current = getSnapshot(candidate -> candidate.byMimeType.containsKey(mimeType));
+        return current.getScriptEngines(current.byMimeType.get(mimeType));
+    }
+
+    /**
+     * Returns the factory of the engine {@link #getEngineByMimeType(String)} would return, without creating an engine.
+     *
+     * @param mimeType the MIME type
+     * @return the factory, or {@code null} if no factory supports the MIME type
+     */
+    public ScriptEngineFactory getEngineFactoryByMimeType(final String mimeType) {
+        return first(getSnapshot(candidate -> candidate.byMimeType.containsKey(mimeType))
+                .byMimeType
+                .get(mimeType));
     }
 
     @Override
     public List<ScriptEngineFactory> getEngineFactories() {
-        readWriteLock.readLock().lock();
-        try {
-            ArrayList<ScriptEngineFactory> list = new ArrayList<>(factories.size());
-            list.addAll(factories);
-            return Collections.unmodifiableList(list);
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        // whether all the factories are known can only be told once the initial discovery is complete
+        return getSnapshot(candidate -> false).factoryList;
     }
 
     @Override
     public void registerEngineName(String name, ScriptEngineFactory factory) {
         readWriteLock.writeLock().lock();
         try {
-            internalManager.registerEngineName(name, factory);
+            registeredNames.put(name, factory);
+            updateFactories();
         } finally {
             readWriteLock.writeLock().unlock();
         }
@@ -229,7 +271,8 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
     public void registerEngineMimeType(String type, ScriptEngineFactory factory) {
         readWriteLock.writeLock().lock();
         try {
-            internalManager.registerEngineMimeType(type, factory);
+            registeredMimeTypes.put(type, factory);
+            updateFactories();
         } finally {
             readWriteLock.writeLock().unlock();
         }
@@ -239,7 +282,8 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
     public void registerEngineExtension(String extension, ScriptEngineFactory factory) {
         readWriteLock.writeLock().lock();
         try {
-            internalManager.registerEngineExtension(extension, factory);
+            registeredExtensions.put(extension, factory);
+            updateFactories();
         } finally {
             readWriteLock.writeLock().unlock();
         }
@@ -251,34 +295,100 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
                 && event.getBundle().getBundleId() > 0
                 // SLING-11398 - use findEntries instead of getEntry to support fragments
                 && event.getBundle().findEntries(META_INF_SERVICES, FACTORY_NAME, false) != null) {
-            synchronized (this.engineSpiBundles) {
-                this.engineSpiBundles.add(event.getBundle());
+            final List<ScriptEngineFactory> bundleFactories = loadFactories(event.getBundle());
+            synchronized (this.spiFactories) {
+                this.spiFactories.put(event.getBundle(), bundleFactories);
             }
             updateFactories();
         } else if (event.getType() == BundleEvent.STOPPED) {
             boolean refresh;
-            synchronized (this.engineSpiBundles) {
-                refresh = this.engineSpiBundles.remove(event.getBundle());
+            synchronized (this.spiFactories) {
+                refresh = this.spiFactories.remove(event.getBundle()) != null;
             }
+            discoveryTimes.remove(event.getBundle());
             if (refresh) {
                 updateFactories();
             }
         }
     }
 
-    public Map<String, Object> getServiceProperties(final ScriptEngineFactory factory) {
-        readWriteLock.readLock().lock();
+    /**
+     * Returns how many engines a script engine factory created through this manager since it was added.
+     *
+     * @param factory the script engine factory
+     * @return the number of created engines
+     */
+    public long getInstantiationCount(final ScriptEngineFactory factory) {
+        final ScriptEngineFactory delegate = factory instanceof SortableScriptEngineFactory
+                ? ((SortableScriptEngineFactory) factory).getDelegate()
+                : factory;
+        final ScriptEngineProvider provider = snapshot.providers.get(delegate);
+        return provider != null ? provider.getInstantiationCount() : 0;
+    }
+
+    /**
+     * Tells if the script engine factories of the bundles started before the activation were discovered.
+     */
+    public boolean isDiscoveryComplete() {
+        return discovery.isDone();
+    }
+
+    /**
+     * Waits for the script engine factories of the bundles started before the activation to be discovered, for at most the
+     * configured discovery wait.
+     *
+     * @return {@code true} if the discovery is complete, {@code false} if it didn't complete in time
+     */
+    public boolean awaitDiscovery() {
         try {
-            return factories.stream()
-                    .filter(f -> f.getDelegate().equals(factory))
-                    .findFirst()
-                    .map(SortableScriptEngineFactory::getServiceProperties)
-                    .orElse(null);
-        } finally {
-            readWriteLock.readLock().unlock();
+            discovery.get(discoveryWait, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            logger.debug("The script engine factories were not discovered within {}ms.", discoveryWait);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
         }
     }
 
+    /**
+     * Returns the current snapshot of the factories. A lookup that the snapshot cannot answer while the initial discovery is
+     * still running waits for the discovery first, so that the factories of the bundles started before the activation aren't
+     * missed right after a startup, while the lookups that can be answered don't wait.
+     *
+     * @param found tells if a snapshot has what the lookup is looking for
+     * @return the snapshot
+     */
+    private Snapshot getSnapshot(final Predicate<Snapshot> found) {
+        final Snapshot current = snapshot;
+        if (discovery.isDone() || found.test(current)) {
+            return current;
+        }
+        awaitDiscovery();
+        return snapshot;
+    }
+
+    /**
+     * Returns how long discovering the script engine factories of each SPI bundle took, the slowest bundle first.
+     *
+     * @return the discovery time of each bundle, in milliseconds
+     */
+    public Map<Bundle, Long> getDiscoveryTimes() {
+        final Map<Bundle, Long> times = new LinkedHashMap<>();
+        discoveryTimes.entrySet().stream()
+                .sorted(Map.Entry.<Bundle, Long>comparingByValue().reversed())
+                .forEach(entry -> times.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue())));
+        return times;
+    }
+
+    public Map<String, Object> getServiceProperties(final ScriptEngineFactory factory) {
+        final SortableScriptEngineFactory sortableFactory = snapshot.byDelegate.get(factory);
+        return sortableFactory != null ? sortableFactory.getServiceProperties() : null;
+    }
+
     @Activate
     private void activate(final Config config, final BundleContext bundleContext) {
         String[] includes = config.includes();
@@ -307,26 +417,87 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
             }
         }
 
+        this.enginePoolSize = Math.max(config.engine_pool_size(), 0);
+        this.updateDebouncer =
+                new UpdateDebouncer(this::postUpdatedEvent, config.update_delay(), "sling-script-engine-update");
+        this.discoveryWait = Math.max(config.discovery_wait(), 0);
+
         this.bundleContext = bundleContext;
         bundleContext.addBundleListener(this);
-        registerInitialScriptEngineFactories();
+        // the platform and service factories are available right away
+        updateFactories();
+        registerInitialScriptEngineFactories(config.discovery_threads());
     }
 
     /**
-     * Handles any spi bundles that were already started before we started listening
+     * Handles any spi bundles that were already started before we started listening. The bundles are searched and their
+     * factories loaded in parallel, off the activation thread; the factories are published all at once, when every bundle
+     * was handled.
+     *
+     * @param threads the number of threads discovering the factories, {@code 0} for the number of available processors
      */
-    private void registerInitialScriptEngineFactories() {
-        Bundle[] bundles = this.bundleContext.getBundles();
+    private void registerInitialScriptEngineFactories(final int threads) {
+        final Bundle[] bundles = this.bundleContext.getBundles();
+        final AtomicInteger threadCount = new AtomicInteger();
+        discoveryExecutor = Executors.newFixedThreadPool(
+                threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), runnable -> {
+                    final Thread thread =
+                            new Thread(runnable, "sling-script-engine-discovery-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Boolean>> discoveries = new ArrayList<>();
         for (Bundle bundle : bundles) {
-            if (bundle.getState() == Bundle.ACTIVE
-                    && bundle.getBundleId() > 0
-                    && bundle.findEntries(META_INF_SERVICES, FACTORY_NAME, false) != null) {
-                synchronized (this.engineSpiBundles) {
-                    this.engineSpiBundles.add(bundle);
+            if (bundle.getState() == Bundle.ACTIVE && bundle.getBundleId() > 0) {
+                discoveries.add(CompletableFuture.supplyAsync(() -> discoverFactories(bundle), discoveryExecutor));
+            }
+        }
+        CompletableFuture.allOf(discoveries.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((result, throwable) -> {
+                    try {
+                        // a bundle whose discovery failed is skipped, the factories of the others are still published
+                        if (discoveries.stream()
+                                .anyMatch(discovered -> !discovered.isCompletedExceptionally()
+                                        && Boolean.TRUE.equals(discovered.getNow(false)))) {
+                            updateFactories();
+                        }
+                        logger.info(
+                                "Discovered the script engine factories of {} bundles in {}ms.",
+                                discoveries.size(),
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    } catch (RuntimeException e) {
+                        logger.error("Unable to publish the discovered script engine factories.", e);
+                    } finally {
+                        discoveryExecutor.shutdown();
+                        discovery.complete(null);
+                    }
+                });
+    }
+
+    /**
+     * Loads the factories of a bundle started before the activation, if it provides any.
+     *
+     * @return {@code true} if the bundle provides factories and is still started
+     */
+    private boolean discoverFactories(final Bundle bundle) {
+        try {
+            // SLING-11398 - use findEntries instead of getEntry to support fragments
+            if (bundle.findEntries(META_INF_SERVICES, FACTORY_NAME, false) == null) {
+                return false;
+            }
+            final List<ScriptEngineFactory> bundleFactories = loadFactories(bundle);
+            synchronized (this.spiFactories) {
+                // the bundle may have been stopped, or started again, in the meantime
+                if (bundle.getState() == Bundle.ACTIVE) {
+                    return this.spiFactories.putIfAbsent(bundle, bundleFactories) == null;
                 }
             }
+        } catch (RuntimeException e) {
+            // for example an IllegalStateException if the bundle was uninstalled in the meantime
+            logger.warn("Unable to discover the script engine factories of bundle {}.", bundle.getSymbolicName(), e);
         }
-        updateFactories();
+        return false;
     }
 
     /**
@@ -387,13 +558,24 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
     @Deactivate
     private void deactivate(final BundleContext bundleContext) {
         bundleContext.removeBundleListener(this);
+        if (updateDebouncer != null) {
+            updateDebouncer.shutdown();
+        }
+        if (discoveryExecutor != null) {
+            discoveryExecutor.shutdownNow();
+        }
+        // don't keep anybody waiting for a discovery that won't complete anymore
+        discovery.complete(null);
+        for (final ScriptEngineProvider provider : snapshot.providers.values()) {
+            provider.clear();
+        }
     }
 
     @SuppressWarnings("unused")
     private void bindScriptEngineFactory(
             final ServiceReference<ScriptEngineFactory> serviceReference, final ScriptEngineFactory factory) {
-        synchronized (this.serviceReferences) {
-            serviceReferences.add(serviceReference);
+        synchronized (this.serviceFactories) {
+            serviceFactories.put(serviceReference, getServiceFactory(serviceReference, factory));
         }
         updateFactories();
         postEvent(SlingScriptConstants.TOPIC_SCRIPT_ENGINE_FACTORY_ADDED, factory);
@@ -402,11 +584,8 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
     @SuppressWarnings("unused")
     private void unbindScriptEngineFactory(
             final ServiceReference<ScriptEngineFactory> serviceReference, final ScriptEngineFactory factory) {
-        synchronized (this.serviceReferences) {
-            serviceReferences.remove(serviceReference);
-            if (bundleContext != null) {
-                bundleContext.ungetService(serviceReference);
-            }
+        synchronized (this.serviceFactories) {
+            serviceFactories.remove(serviceReference);
         }
         updateFactories();
         postEvent(SlingScriptConstants.TOPIC_SCRIPT_ENGINE_FACTORY_REMOVED, factory);
@@ -415,19 +594,31 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
     @SuppressWarnings("unused")
     private void updatedScriptEngineFactory(
             final ServiceReference<ScriptEngineFactory> serviceReference, final ScriptEngineFactory factory) {
+        synchronized (this.serviceFactories) {
+            // the ranking or the properties may have changed
+            serviceFactories.put(serviceReference, getServiceFactory(serviceReference, factory));
+        }
         updateFactories();
         postEvent(SlingScriptConstants.TOPIC_SCRIPT_ENGINE_FACTORY_UPDATED, factory);
     }
 
+    /**
+     * Publishes a new snapshot of the factories discovered so far. Factories are only discovered when their bundle starts or
+     * their service is bound, so a change only costs sorting and indexing the factories again.
+     */
     private void updateFactories() {
         readWriteLock.writeLock().lock();
         try {
-            internalManager = getInternalScriptEngineManager();
+            if (internalManager == null) {
+                internalManager = getInternalScriptEngineManager();
+                platformFactories = new ArrayList<>(internalManager.getEngineFactories());
+                platformFactories.forEach(this::checkAssociations);
+            }
             factories.clear();
 
             long fakeBundleIdCounter = Long.MIN_VALUE;
             // first add the platform factories
-            for (final ScriptEngineFactory factory : internalManager.getEngineFactories()) {
+            for (final ScriptEngineFactory factory : platformFactories) {
                 if (isIncluded(factory)) {
                     final SortableScriptEngineFactory sortableScriptEngineFactory =
                             new SortableScriptEngineFactory(factory, fakeBundleIdCounter++, 0, null);
@@ -436,61 +627,117 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
             }
 
             // then factories from SPI Bundles
-            final ClassLoader loader = Thread.currentThread().getContextClassLoader();
-            try {
-                Thread.currentThread().setContextClassLoader(null);
-                for (final Bundle bundle : engineSpiBundles) {
-                    try {
-                        final ScriptEngineManager manager = new ScriptEngineManager(
-                                bundle.adapt(BundleWiring.class).getClassLoader());
-                        for (final ScriptEngineFactory factory : manager.getEngineFactories()) {
-                            if (isIncluded(factory)) {
-                                final SortableScriptEngineFactory sortableScriptEngineFactory =
-                                        new SortableScriptEngineFactory(factory, bundle.getBundleId(), 0, null);
-                                factories.add(sortableScriptEngineFactory);
-                            }
+            synchronized (this.spiFactories) {
+                for (final Map.Entry<Bundle, List<ScriptEngineFactory>> entry : spiFactories.entrySet()) {
+                    final long bundleId = entry.getKey().getBundleId();
+                    for (final ScriptEngineFactory factory : entry.getValue()) {
+                        if (isIncluded(factory)) {
+                            factories.add(new SortableScriptEngineFactory(factory, bundleId, 0, null));
                         }
-                    } catch (Exception ex) {
-                        logger.error("Unable to process bundle " + bundle.getSymbolicName(), ex);
                     }
                 }
-            } finally {
-                Thread.currentThread().setContextClassLoader(loader);
             }
             // and finally factories registered as OSGi services
-            if (bundleContext != null) {
-                synchronized (this.serviceReferences) {
-                    for (final ServiceReference<ScriptEngineFactory> serviceReference : serviceReferences) {
-                        final ScriptEngineFactory scriptEngineFactory = bundleContext.getService(serviceReference);
-                        if (isIncluded(scriptEngineFactory)) {
-                            final Map<String, Object> factoryProperties =
-                                    new HashMap<>(serviceReference.getPropertyKeys().length);
-                            for (final String key : serviceReference.getPropertyKeys()) {
-                                factoryProperties.put(key, serviceReference.getProperty(key));
-                            }
-                            final Object prop = serviceReference.getProperty(Constants.SERVICE_RANKING);
-                            final int ranking = prop instanceof Integer ? (Integer) prop : 0;
-                            final SortableScriptEngineFactory sortableScriptEngineFactory =
-                                    new SortableScriptEngineFactory(
-                                            scriptEngineFactory,
-                                            serviceReference.getBundle().getBundleId(),
-                                            ranking,
-                                            factoryProperties);
-                            factories.add(sortableScriptEngineFactory);
-                        }
+            synchronized (this.serviceFactories) {
+                for (final SortableScriptEngineFactory factory : serviceFactories.values()) {
+                    if (isIncluded(factory.getDelegate())) {
+                        factories.add(factory);
                     }
                 }
             }
-            // register the associations at the end, so that the priority sorting is taken into consideration
-            for (final ScriptEngineFactory factory : factories) {
-                registerAssociations(factory);
+            final Registrations registrations =
+                    new Registrations(registeredNames, registeredMimeTypes, registeredExtensions);
+            // keep the engines of the factories that are still available
+            final Map<ScriptEngineFactory, ScriptEngineProvider> previousProviders = snapshot.providers;
+            final Map<ScriptEngineFactory, ScriptEngineProvider> providers = new HashMap<>();
+            final Set<ScriptEngineFactory> delegates = new LinkedHashSet<>();
+            for (final SortableScriptEngineFactory factory : factories) {
+                delegates.add(factory.getDelegate());
             }
-            if (eventAdmin != null) {
-                eventAdmin.postEvent(new Event(EVENT_TOPIC_SCRIPT_MANAGER_UPDATED, Collections.emptyMap()));
+            delegates.addAll(registrations.getFactories());
+            for (final ScriptEngineFactory delegate : delegates) {
+                final ScriptEngineProvider provider = previousProviders.get(delegate);
+                // providers created before the activation don't know the configured pool size
+                providers.put(
+                        delegate,
+                        provider != null && provider.getMaxThreadEngines() == enginePoolSize
+                                ? provider
+                                : new ScriptEngineProvider(delegate, enginePoolSize));
+            }
+            snapshot = new Snapshot(factories, registrations, providers);
+            // the engines of the replaced providers would otherwise keep the classes of their factories
+            for (final ScriptEngineProvider previousProvider : previousProviders.values()) {
+                if (!providers.containsValue(previousProvider)) {
+                    previousProvider.clear();
+                }
             }
         } finally {
             readWriteLock.writeLock().unlock();
         }
+        scheduleUpdatedEvent();
+    }
+
+    /**
+     * Announces that the factories were updated, once they stayed unchanged for the configured update delay.
+     */
+    private void scheduleUpdatedEvent() {
+        final UpdateDebouncer debouncer = updateDebouncer;
+        if (debouncer == null) {
+            // the factories bound before the activation are announced right away
+            postUpdatedEvent();
+        } else {
+            debouncer.update();
+        }
+    }
+
+    private void postUpdatedEvent() {
+        final EventAdmin localEventAdmin = eventAdmin;
+        if (localEventAdmin != null) {
+            localEventAdmin.postEvent(new Event(EVENT_TOPIC_SCRIPT_MANAGER_UPDATED, Collections.emptyMap()));
+        }
+    }
+
+    /**
+     * Discovers the factories provided by a bundle through {@code META-INF/services}.
+     *
+     * @param bundle the bundle
+     * @return the factories of the bundle, empty if they cannot be loaded
+     */
+    private List<ScriptEngineFactory> loadFactories(final Bundle bundle) {
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        final long start = System.nanoTime();
+        try {
+            Thread.currentThread().setContextClassLoader(null);
+            final ScriptEngineManager manager =
+                    new ScriptEngineManager(bundle.adapt(BundleWiring.class).getClassLoader());
+            final List<ScriptEngineFactory> bundleFactories = new ArrayList<>(manager.getEngineFactories());
+            bundleFactories.forEach(this::checkAssociations);
+            return bundleFactories;
+        } catch (Exception ex) {
+            logger.error("Unable to process bundle " + bundle.getSymbolicName(), ex);
+            return Collections.emptyList();
+        } finally {
+            Thread.currentThread().setContextClassLoader(loader);
+            final long time = System.nanoTime() - start;
+            discoveryTimes.put(bundle, time);
+            logger.debug(
+                    "Discovered the script engine factories of bundle {} in {}ms.",
+                    bundle.getSymbolicName(),
+                    TimeUnit.NANOSECONDS.toMillis(time));
+        }
+    }
+
+    private SortableScriptEngineFactory getServiceFactory(
+            final ServiceReference<ScriptEngineFactory> serviceReference, final ScriptEngineFactory factory) {
+        final Map<String, Object> factoryProperties = new HashMap<>(serviceReference.getPropertyKeys().length);
+        for (final String key : serviceReference.getPropertyKeys()) {
+            factoryProperties.put(key, serviceReference.getProperty(key));
+        }
+        final Object prop = serviceReference.getProperty(Constants.SERVICE_RANKING);
+        final int ranking = prop instanceof Integer ? (Integer) prop : 0;
+        checkAssociations(factory);
+        return new SortableScriptEngineFactory(
+                factory, serviceReference.getBundle().getBundleId(), ranking, factoryProperties);
     }
 
     private ScriptEngineManager getInternalScriptEngineManager() {
@@ -503,33 +750,24 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
         }
     }
 
-    private void registerAssociations(ScriptEngineFactory factory) {
-        for (String extension : factory.getExtensions()) {
-            if (extension != null && !extension.isEmpty()) {
-                internalManager.registerEngineExtension(extension, factory);
-            } else {
-                logger.warn(
-                        "Could not register an empty or null extension for script engine factory {}.",
-                        factory.getEngineName());
-            }
+    /**
+     * Warns about the extensions, MIME types and names of a factory that cannot be looked up.
+     */
+    private void checkAssociations(ScriptEngineFactory factory) {
+        if (factory.getExtensions().stream().anyMatch(extension -> extension == null || extension.isEmpty())) {
+            logger.warn(
+                    "Could not register an empty or null extension for script engine factory {}.",
+                    factory.getEngineName());
         }
-        for (String mimeType : factory.getMimeTypes()) {
-            if (mimeType != null && !mimeType.isEmpty()) {
-                internalManager.registerEngineMimeType(mimeType, factory);
-            } else {
-                logger.warn(
-                        "Could not register an empty or null mime type for script engine factory {}.",
-                        factory.getEngineName());
-            }
+        if (factory.getMimeTypes().stream().anyMatch(mimeType -> mimeType == null || mimeType.isEmpty())) {
+            logger.warn(
+                    "Could not register an empty or null mime type for script engine factory {}.",
+                    factory.getEngineName());
         }
-        for (String name : factory.getNames()) {
-            if (name != null && !name.isEmpty()) {
-                internalManager.registerEngineName(name, factory);
-            } else {
-                logger.warn(
-                        "Could not register an empty or null engine name for script engine factory {}.",
-                        factory.getEngineName());
-            }
+        if (factory.getNames().stream().anyMatch(name -> name == null || name.isEmpty())) {
+            logger.warn(
+                    "Could not register an empty or null engine name for script engine factory {}.",
+                    factory.getEngineName());
         }
     }
 
@@ -555,4 +793,131 @@ public class SlingScriptEngineManager extends ScriptEngineManager implements Bun
             eventAdmin.postEvent(new Event(topic, props));
         }
     }
+
+    private static SortableScriptEngineFactory first(final List<SortableScriptEngineFactory> factories) {
+        return factories == null ? null : factories.get(0);
+    }
+
+    /**
+     * An immutable view of the available factories, in priority order, indexed by extension, name, MIME type and delegate.
+     * A new snapshot is published whenever the factories change, so that lookups don't need any lock.
+     */
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY =
+                new Snapshot(Collections.emptyList(), Registrations.EMPTY, Collections.emptyMap());
+
+        private final List<SortableScriptEngineFactory> factories;
+        private final List<ScriptEngineFactory> factoryList;
+        private final Map<String, List<SortableScriptEngineFactory>> byExtension = new HashMap<>();
+        private final Map<String, List<SortableScriptEngineFactory>> byName = new HashMap<>();
+        private final Map<String, List<SortableScriptEngineFactory>> byMimeType = new HashMap<>();
+        private final Map<ScriptEngineFactory, SortableScriptEngineFactory> byDelegate = new HashMap<>();
+        private final Map<String, SortableScriptEngineFactory> registeredNames = new HashMap<>();
+        private final Map<ScriptEngineFactory, ScriptEngineProvider> providers;
+
+        Snapshot(
+                final Collection<SortableScriptEngineFactory> factories,
+                final Registrations registrations,
+                final Map<ScriptEngineFactory, ScriptEngineProvider> providers) {
+            this.factories = Collections.unmodifiableList(new ArrayList<>(factories));
+            this.factoryList = Collections.unmodifiableList(this.factories);
+            this.providers = providers;
+            for (final SortableScriptEngineFactory factory : factories) {
+                index(byExtension, factory.getExtensions(), factory);
+                index(byName, factory.getNames(), factory);
+                index(byMimeType, factory.getMimeTypes(), factory);
+                byDelegate.putIfAbsent(factory.getDelegate(), factory);
+            }
+            // as with the ScriptEngineManager, explicit registrations take precedence over the factories
+            final Map<ScriptEngineFactory, SortableScriptEngineFactory> registered = new HashMap<>();
+            for (final ScriptEngineFactory factory : registrations.getFactories()) {
+                final SortableScriptEngineFactory sortableFactory = byDelegate.get(factory);
+                registered.put(
+                        factory,
+                        sortableFactory != null
+                                ? sortableFactory
+                                : new SortableScriptEngineFactory(factory, 0, 0, null));
+            }
+            register(byExtension, registrations.extensions, registered);
+            register(byMimeType, registrations.mimeTypes, registered);
+            register(byName, registrations.names, registered);
+            registrations.names.forEach((name, factory) -> registeredNames.put(name, registered.get(factory)));
+        }
+
+        /**
+         * Returns an engine of a factory, shared or reused if the factory allows it.
+         */
+        ScriptEngine getScriptEngine(final SortableScriptEngineFactory factory) {
+            if (factory == null) {
+                return null;
+            }
+            final ScriptEngineProvider provider = providers.get(factory.getDelegate());
+            return provider != null ? provider.getScriptEngine() : factory.getDelegate().getScriptEngine();
+        }
+
+        List<ScriptEngine> getScriptEngines(final List<SortableScriptEngineFactory> factories) {
+            if (factories == null) {
+                return new ArrayList<>();
+            }
+            final List<ScriptEngine> engines = new ArrayList<>(factories.size());
+            for (final SortableScriptEngineFactory factory : factories) {
+                engines.add(getScriptEngine(factory));
+            }
+            return engines;
+        }
+
+        private static void register(
+                final Map<String, List<SortableScriptEngineFactory>> index,
+                final Map<String, ScriptEngineFactory> registrations,
+                final Map<ScriptEngineFactory, SortableScriptEngineFactory> registered) {
+            for (final Map.Entry<String, ScriptEngineFactory> registration : registrations.entrySet()) {
+                index.computeIfAbsent(registration.getKey(), k -> new ArrayList<>(1))
+                        .add(0, registered.get(registration.getValue()));
+            }
+        }
+
+        private static void index(
+                final Map<String, List<SortableScriptEngineFactory>> index,
+                final List<String> keys,
+                final SortableScriptEngineFactory factory) {
+            if (keys != null) {
+                for (final String key : keys) {
+                    index.computeIfAbsent(key, k -> new ArrayList<>(1)).add(factory);
+                }
+            }
+        }
+    }
+
+    /**
+     * A copy of the associations registered through {@link #registerEngineName(String, ScriptEngineFactory)},
+     * {@link #registerEngineMimeType(String, ScriptEngineFactory)} and
+     * {@link #registerEngineExtension(String, ScriptEngineFactory)}.
+     */
+    private static final class Registrations {
+
+        static final Registrations EMPTY =
+                new Registrations(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+        private final Map<String, ScriptEngineFactory> names;
+        private final Map<String, ScriptEngineFactory> mimeTypes;
+        private final Map<String, ScriptEngineFactory> extensions;
+
+        Registrations(
+                final Map<String, ScriptEngineFactory> names,
+                final Map<String, ScriptEngineFactory> mimeTypes,
+                final Map<String, ScriptEngineFactory> extensions) {
+            this.names = new HashMap<>(names);
+            this.mimeTypes = new HashMap<>(mimeTypes);
+            this.extensions = new HashMap<>(extensions);
+        }
+
+        Set<ScriptEngineFactory> getFactories() {
+            final Set<ScriptEngineFactory> factories = new LinkedHashSet<>();
+            factories.addAll(names.values());
+            factories.addAll(mimeTypes.values());
+            factories.addAll(extensions.values());
+            return factories;
+        }
+    }
 }
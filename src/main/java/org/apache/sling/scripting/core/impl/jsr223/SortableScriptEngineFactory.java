@@ -125,7 +125,7 @@ public class SortableScriptEngineFactory implements ScriptEngineFactory, Compara
     }
 
     @NotNull
-    ScriptEngineFactory getDelegate() {
+    public ScriptEngineFactory getDelegate() {
         return delegate;
     }
 
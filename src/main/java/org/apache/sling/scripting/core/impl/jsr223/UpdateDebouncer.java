@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl.jsr223;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an announcement once a burst of updates settled: the announcement runs when no update happened for the configured
+ * delay, or at the latest {@value #MAX_DELAY_FACTOR} times the delay after the first update of a burst that doesn't settle.
+ */
+final class UpdateDebouncer {
+
+    static final int MAX_DELAY_FACTOR = 10;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpdateDebouncer.class);
+
+    private final Runnable announcement;
+
+    private final long delay;
+
+    private final ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> scheduled;
+
+    private long firstPendingUpdate;
+
+    /**
+     * @param announcement the announcement of the updates
+     * @param delay        the number of milliseconds the updates have to settle, {@code 0} to announce every update right
+     *                     away
+     * @param threadName   the name of the thread running the delayed announcements
+     */
+    UpdateDebouncer(final Runnable announcement, final long delay, final String threadName) {
+        this.announcement = announcement;
+        this.delay = Math.max(delay, 0);
+        this.executor = this.delay > 0
+                ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    final Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+    }
+
+    /**
+     * Records an update, postponing the pending announcement unless the burst it belongs to already lasts too long.
+     */
+    synchronized void update() {
+        if (executor == null) {
+            announcement.run();
+            return;
+        }
+        final long now = System.nanoTime();
+        if (scheduled == null || scheduled.isDone()) {
+            firstPendingUpdate = now;
+        } else if (now - firstPendingUpdate < TimeUnit.MILLISECONDS.toNanos(delay * MAX_DELAY_FACTOR)) {
+            if (!scheduled.cancel(false)) {
+                // the announcement is already running; the new updates are announced by the next one
+                firstPendingUpdate = now;
+            }
+        } else {
+            return;
+        }
+        try {
+            scheduled = executor.schedule(announcement, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Not announcing the update, the debouncer was shut down.");
+        }
+    }
+
+    /**
+     * Drops the pending announcement.
+     */
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
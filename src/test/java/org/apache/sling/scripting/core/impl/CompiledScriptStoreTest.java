@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.sling.scripting.core.CompiledScriptSerializer;
+import org.apache.sling.scripting.core.impl.jsr223.DummyScriptEngineFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import org.osgi.framework.BundleContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledScriptStoreTest {
+
+    private static final String SCRIPT_PATH = "/apps/test/script.dum";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final CompiledScriptStore store = createStore(1);
+        final ScriptEngine engine = new SerializingScriptEngineFactory("1.0").getScriptEngine();
+        assertTrue(store.supports(engine));
+        assertFalse(store.supports(new DummyScriptEngineFactory().getScriptEngine()));
+
+        store.store(engine, SCRIPT_PATH, "source", new TestCompiledScript(engine, "source"));
+        final CompiledScript loaded = store.load(engine, SCRIPT_PATH, "source");
+        assertNotNull(loaded);
+        assertEquals("source", ((TestCompiledScript) loaded).source);
+        assertEquals(engine, loaded.getEngine());
+        assertTrue(store.getSize() > 0);
+
+        assertNull("A changed source should not load the blob.", store.load(engine, SCRIPT_PATH, "changed source"));
+        assertNull(
+                "Another script with the same source should not load the blob.",
+                store.load(engine, "/apps/test/other.dum", "source"));
+    }
+
+    @Test
+    public void testEngineVersionMismatch() throws Exception {
+        final CompiledScriptStore store = createStore(1);
+        final ScriptEngine engine = new SerializingScriptEngineFactory("1.0").getScriptEngine();
+        store.store(engine, SCRIPT_PATH, "source", new TestCompiledScript(engine, "source"));
+
+        final ScriptEngine updatedEngine = new SerializingScriptEngineFactory("2.0").getScriptEngine();
+        assertNull(store.load(updatedEngine, SCRIPT_PATH, "source"));
+        assertNotNull(store.load(engine, SCRIPT_PATH, "source"));
+    }
+
+    @Test
+    public void testCorruptBlob() throws Exception {
+        final CompiledScriptStore store = createStore(1);
+        final ScriptEngine engine = new SerializingScriptEngineFactory("1.0").getScriptEngine();
+        store.store(engine, SCRIPT_PATH, "source", new TestCompiledScript(engine, "source"));
+        final File blob = getBlobs().get(0);
+        Files.write(blob.toPath(), "not a compiled script".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(store.load(engine, SCRIPT_PATH, "source"));
+        assertFalse("A corrupt blob should be deleted.", blob.exists());
+    }
+
+    @Test
+    public void testTruncatedBlob() throws Exception {
+        final CompiledScriptStore store = createStore(1);
+        final ScriptEngine engine = new SerializingScriptEngineFactory("1.0").getScriptEngine();
+        store.store(engine, SCRIPT_PATH, "source", new TestCompiledScript(engine, "source"));
+        final File blob = getBlobs().get(0);
+        final byte[] content = Files.readAllBytes(blob.toPath());
+        Files.write(blob.toPath(), Arrays.copyOf(content, content.length - 2));
+
+        assertNull(store.load(engine, SCRIPT_PATH, "source"));
+        assertFalse("A truncated blob should be deleted.", blob.exists());
+    }
+
+    @Test
+    public void testPruning() throws Exception {
+        final CompiledScriptStore store = createStore(1);
+        final ScriptEngine engine = new SerializingScriptEngineFactory("1.0").getScriptEngine();
+        final char[] chars = new char[300 * 1024];
+        final List<File> blobs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Arrays.fill(chars, (char) ('a' + i));
+            final String source = new String(chars);
+            store.store(engine, "/apps/test/script" + i + ".dum", source, new TestCompiledScript(engine, source));
+            // make the blobs' ages independent of the resolution of the file system timestamps
+            for (final File blob : getBlobs()) {
+                if (!blobs.contains(blob)) {
+                    blobs.add(blob);
+                    assertTrue(blob.setLastModified(System.currentTimeMillis() - (10 - i) * 60_000L));
+                }
+            }
+        }
+
+        assertTrue(store.getSize() <= 1024 * 1024);
+        assertFalse("The least recently used blob should be deleted.", blobs.get(0).exists());
+        assertTrue("The most recently used blob should be kept.", blobs.get(3).exists());
+        assertEquals(getBlobs().stream().mapToLong(File::length).sum(), store.getSize());
+    }
+
+    private CompiledScriptStore createStore(int size) throws IOException {
+        final ScriptCacheImplConfiguration configuration = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(configuration.org_apache_sling_scripting_cache_compiled__store__size()).thenReturn(size);
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.when(bundleContext.getDataFile("compiled-scripts")).thenReturn(temporaryFolder.getRoot());
+        return new CompiledScriptStore(configuration, bundleContext);
+    }
+
+    private List<File> getBlobs() {
+        final List<File> blobs = new ArrayList<>();
+        final File[] buckets = temporaryFolder.getRoot().listFiles(File::isDirectory);
+        if (buckets != null) {
+            for (final File bucket : buckets) {
+                blobs.addAll(Arrays.asList(bucket.listFiles()));
+            }
+        }
+        return blobs;
+    }
+
+    private static final class SerializingScriptEngineFactory extends DummyScriptEngineFactory
+            implements CompiledScriptSerializer {
+
+        private static final int MAGIC = 0x5C41D7;
+
+        private final String engineVersion;
+
+        SerializingScriptEngineFactory(String engineVersion) {
+            this.engineVersion = engineVersion;
+        }
+
+        @Override
+        public String getEngineVersion() {
+            return engineVersion;
+        }
+
+        @Override
+        public void serialize(CompiledScript compiledScript, OutputStream outputStream) throws IOException {
+            final byte[] source = ((TestCompiledScript) compiledScript).source.getBytes(StandardCharsets.UTF_8);
+            final DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            dataOutputStream.writeInt(MAGIC);
+            dataOutputStream.writeInt(source.length);
+            dataOutputStream.write(source);
+            dataOutputStream.flush();
+        }
+
+        @Override
+        public CompiledScript deserialize(ScriptEngine scriptEngine, InputStream inputStream) throws IOException {
+            final DataInputStream dataInputStream = new DataInputStream(inputStream);
+            if (dataInputStream.readInt() != MAGIC) {
+                throw new IOException("Not a compiled script.");
+            }
+            final byte[] source = new byte[dataInputStream.readInt()];
+            dataInputStream.readFully(source);
+            return new TestCompiledScript(scriptEngine, new String(source, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static final class TestCompiledScript extends CompiledScript {
+
+        private final ScriptEngine engine;
+        private final String source;
+
+        TestCompiledScript(ScriptEngine engine, String source) {
+            this.engine = engine;
+            this.source = source;
+        }
+
+        @Override
+        public Object eval(ScriptContext context) {
+            return null;
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return engine;
+        }
+    }
+}
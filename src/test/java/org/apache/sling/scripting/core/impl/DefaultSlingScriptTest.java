@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.SimpleBindings;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.api.resource.SyntheticResource;
+import org.apache.sling.api.scripting.SlingBindings;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.BundleContext;
+
+import static org.junit.Assert.assertEquals;
+
+public class DefaultSlingScriptTest {
+
+    private static final String SCRIPT_PATH = "/apps/test/script.test";
+
+    private static final String SOURCE = "def hello\ndef goodbye";
+
+    private final ScriptEngineFactory factory = mockFactory();
+
+    private final AtomicInteger interpretations = new AtomicInteger();
+
+    private final AtomicInteger compilations = new AtomicInteger();
+
+    private final AtomicInteger compiledEvaluations = new AtomicInteger();
+
+    @Test
+    public void testMethodIsInvokedOnTheEngineOfTheScript() {
+        final ScriptCacheImpl scriptCache = createCache(1);
+        final TestScriptEngine compilingEngine = new TestScriptEngine();
+        createScript(compilingEngine, scriptCache).eval(new SlingBindings());
+        assertEquals(1, compilations.get());
+
+        // the script is cached, but its functions are only defined on the engine which evaluates it
+        final TestScriptEngine engine = new TestScriptEngine();
+        createScript(engine, scriptCache).call(new SlingBindings(), "hello");
+        assertEquals(Collections.singletonList("hello"), engine.invocations);
+        assertEquals(1, interpretations.get());
+        assertEquals(1, compilations.get());
+    }
+
+    @Test
+    public void testScriptIsInterpretedUntilHot() {
+        final ScriptCacheImpl scriptCache = createCache(3);
+        final DefaultSlingScript script = createScript(new TestScriptEngine(), scriptCache);
+
+        script.eval(new SlingBindings());
+        script.eval(new SlingBindings());
+        assertEquals(2, interpretations.get());
+        assertEquals(0, compilations.get());
+
+        // the evaluation reaching the admission threshold compiles the script, the next ones reuse it
+        script.eval(new SlingBindings());
+        assertEquals(1, compilations.get());
+        assertEquals(1, compiledEvaluations.get());
+        script.eval(new SlingBindings());
+        assertEquals(2, interpretations.get());
+        assertEquals(1, compilations.get());
+        assertEquals(2, compiledEvaluations.get());
+    }
+
+    private DefaultSlingScript createScript(final ScriptEngine engine, final ScriptCacheImpl scriptCache) {
+        return new DefaultSlingScript(
+                Mockito.mock(BundleContext.class),
+                new ScriptResource(),
+                engine,
+                Collections.emptyList(),
+                Mockito.mock(ServiceCache.class),
+                scriptCache);
+    }
+
+    private static ScriptCacheImpl createCache(final int admissionThreshold) {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_eviction__policy()).thenReturn("LRU");
+        Mockito.when(config.org_apache_sling_scripting_cache_compilation__timeout())
+                .thenReturn(10000L);
+        Mockito.when(config.org_apache_sling_scripting_cache_admission__threshold())
+                .thenReturn(admissionThreshold);
+        return new ScriptCacheImpl(config);
+    }
+
+    private static ScriptEngineFactory mockFactory() {
+        final ScriptEngineFactory factory = Mockito.mock(ScriptEngineFactory.class);
+        Mockito.when(factory.getEngineVersion()).thenReturn("1.0");
+        return factory;
+    }
+
+    private static final class ScriptResource extends SyntheticResource {
+
+        ScriptResource() {
+            super(null, SCRIPT_PATH, "nt:file");
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T adaptTo(final Class<T> type) {
+            if (type == InputStream.class) {
+                return (T) new ByteArrayInputStream(SOURCE.getBytes(StandardCharsets.UTF_8));
+            }
+            return super.adaptTo(type);
+        }
+    }
+
+    /**
+     * A script engine whose scripts define functions, one per {@code def <name>} line, which can then be invoked on the
+     * engine which evaluated the script.
+     */
+    private final class TestScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+
+        private final Set<String> functions = new HashSet<>();
+
+        private final List<String> invocations = new ArrayList<>();
+
+        @Override
+        public Object eval(final String script, final ScriptContext context) {
+            interpretations.incrementAndGet();
+            return define(script);
+        }
+
+        @Override
+        public Object eval(final Reader reader, final ScriptContext context) {
+            return eval(read(reader), context);
+        }
+
+        @Override
+        public CompiledScript compile(final String script) {
+            compilations.incrementAndGet();
+            return new CompiledScript() {
+                @Override
+                public Object eval(final ScriptContext context) {
+                    compiledEvaluations.incrementAndGet();
+                    return define(script);
+                }
+
+                @Override
+                public ScriptEngine getEngine() {
+                    return TestScriptEngine.this;
+                }
+            };
+        }
+
+        @Override
+        public CompiledScript compile(final Reader reader) {
+            return compile(read(reader));
+        }
+
+        @Override
+        public Object invokeFunction(final String name, final Object... args) throws NoSuchMethodException {
+            if (!functions.contains(name)) {
+                throw new NoSuchMethodException(name);
+            }
+            invocations.add(name);
+            return name;
+        }
+
+        @Override
+        public Object invokeMethod(final Object thiz, final String name, final Object... args) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T getInterface(final Class<T> clasz) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T getInterface(final Object thiz, final Class<T> clasz) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Bindings createBindings() {
+            return new SimpleBindings();
+        }
+
+        @Override
+        public ScriptEngineFactory getFactory() {
+            return factory;
+        }
+
+        private Object define(final String script) {
+            for (final String line : script.split("\n")) {
+                functions.add(line.substring("def ".length()));
+            }
+            return null;
+        }
+
+        private String read(final Reader reader) {
+            try {
+                return IOUtils.toString(reader);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -18,14 +18,37 @@
  */
 package org.apache.sling.scripting.core.impl;
 
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.sling.scripting.api.CachedScript;
+import org.apache.sling.scripting.core.impl.helper.CachedScriptImpl;
 import org.junit.Test;
 import org.mockito.Mockito;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ScriptCacheImplTest {
 
@@ -62,4 +85,587 @@ public class ScriptCacheImplTest {
         scripts = cache.getCachedScripts();
         assertTrue(scripts.isEmpty());
     }
+
+    @Test
+    public void testSubtreeRemoval() {
+        final ScriptCacheImpl cache = createCache(10, "lru");
+        cache.putScript(mockScript("/apps/a/script1"));
+        cache.putScript(mockScript("/apps/a/b/script2"));
+        cache.putScript(mockScript("/apps/a-b/script3"));
+        cache.putScript(mockScript("/apps/a0/script4"));
+        cache.putScript(mockScript("/apps/ab"));
+
+        assertTrue(cache.removeScript("/apps/a"));
+        List<String> scripts = cache.getCachedScripts();
+        assertEquals(3, scripts.size());
+        assertTrue(scripts.contains("/apps/a-b/script3"));
+        assertTrue(scripts.contains("/apps/a0/script4"));
+        assertTrue(scripts.contains("/apps/ab"));
+
+        assertFalse(cache.removeScript("/apps/a"));
+        cache.putScript(mockScript("/apps/a/script1"));
+        assertNotNull(cache.getScript("/apps/a/script1"));
+    }
+
+    @Test
+    public void testVariantRemoval() {
+        final ScriptCacheImpl cache = createCache(10, "lru");
+        cache.putScript(mockScript("/apps/script.js"));
+        cache.putScript(mockScript(ScriptCacheImpl.getVariantKey("/apps/script.js", "render()")));
+        cache.putScript(mockScript(ScriptCacheImpl.getVariantKey("/apps/script.jsp", "render()")));
+
+        assertTrue(cache.removeScript("/apps/script.js"));
+        List<String> scripts = cache.getCachedScripts();
+        assertEquals(1, scripts.size());
+        assertTrue(scripts.contains(ScriptCacheImpl.getVariantKey("/apps/script.jsp", "render()")));
+    }
+
+    @Test
+    public void testScriptPathResemblingVariant() {
+        final ScriptCacheImpl cache = createCache(10, "lru");
+        cache.putScript(mockScript("/apps/script.js"));
+        cache.putScript(mockScript("/apps/script.js#render()"));
+
+        assertEquals("/apps/script.js#render()", ScriptCacheImpl.getScriptPath("/apps/script.js#render()"));
+        assertTrue(cache.removeScript("/apps/script.js"));
+        assertNotNull(cache.getScript("/apps/script.js#render()"));
+    }
+
+    @Test
+    public void testSourceCache() {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_source__size()).thenReturn(2);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        assertTrue(cache.isSourceCacheEnabled());
+
+        cache.putSource("/apps/a/script1.txt", 1, "source1");
+        assertEquals("source1", cache.getSource("/apps/a/script1.txt", 1));
+        assertNull("A modified script should not be served from the cache.", cache.getSource("/apps/a/script1.txt", 2));
+
+        cache.putSource("/apps/a/script2.txt", 1, "source2");
+        cache.putSource("/apps/b/script3.txt", 1, "source3");
+        assertEquals(2, cache.getCachedSources().size());
+
+        cache.removeScript("/apps/a");
+        assertNull(cache.getSource("/apps/a/script2.txt", 1));
+        assertEquals("source3", cache.getSource("/apps/b/script3.txt", 1));
+        assertEquals(2L * "source3".length(), cache.getSourceWeight());
+    }
+
+    @Test
+    public void testSubtreeRemovalWithCachedSources() {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_source__size()).thenReturn(2);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        cache.putSource("/apps/a/script1.txt", 1, "source1");
+        cache.putScript(mockScript("/apps/a/script2.js"));
+
+        assertTrue(cache.removeScript("/apps/a"));
+        assertNull(cache.getSource("/apps/a/script1.txt", 1));
+        assertNull(cache.getScript("/apps/a/script2.js"));
+    }
+
+    @Test
+    public void testSourceCacheMemoryBound() {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_source__size()).thenReturn(100);
+        Mockito.when(config.org_apache_sling_scripting_cache_source__max__memory()).thenReturn(1);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        final String source = new String(new char[16 * 1024]);
+        for (int i = 0; i < 40; i++) {
+            cache.putSource("/apps/script" + i + ".txt", 1, source);
+        }
+        assertTrue(cache.getSourceWeight() <= 1024 * 1024);
+        assertTrue(cache.getCachedSources().size() < 40);
+        assertEquals(source, cache.getSource("/apps/script39.txt", 1));
+
+        cache.putSource("/apps/large.txt", 1, new String(new char[32 * 1024]));
+        assertNull("A source above 1/32 of the budget should not be cached.", cache.getSource("/apps/large.txt", 1));
+
+        cache.clear();
+        assertEquals(0, cache.getSourceWeight());
+    }
+
+    @Test
+    public void testLruEviction() {
+        final ScriptCacheImpl cache = createCache(2, "lru");
+        final CachedScript script1 = mockScript("/apps/script1");
+        final CachedScript script2 = mockScript("/apps/script2");
+        cache.putScript(script1);
+        cache.putScript(script2);
+        assertNotNull(cache.getScript(script1.getScriptPath()));
+
+        cache.putScript(mockScript("/apps/script3"));
+        List<String> scripts = cache.getCachedScripts();
+        assertEquals(2, scripts.size());
+        assertTrue(scripts.contains("/apps/script1"));
+        assertFalse(scripts.contains("/apps/script2"));
+        assertTrue(scripts.contains("/apps/script3"));
+    }
+
+    @Test
+    public void testLfuEviction() {
+        final ScriptCacheImpl cache = createCache(2, "lfu");
+        final CachedScript script1 = mockScript("/apps/script1");
+        final CachedScript script2 = mockScript("/apps/script2");
+        cache.putScript(script1);
+        cache.putScript(script2);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(cache.getScript(script1.getScriptPath()));
+        }
+        assertNotNull(cache.getScript(script2.getScriptPath()));
+
+        cache.putScript(mockScript("/apps/script3"));
+        List<String> scripts = cache.getCachedScripts();
+        assertEquals(2, scripts.size());
+        assertTrue(scripts.contains("/apps/script1"));
+        assertFalse(scripts.contains("/apps/script2"));
+        // a new script is not the victim of the eviction it triggers
+        assertNotNull(cache.getScript("/apps/script3"));
+    }
+
+    @Test
+    public void testLfuAging() {
+        final ScriptCacheImpl cache = createCache(2, "lfu");
+        cache.putScript(mockScript("/apps/script1"));
+        cache.putScript(mockScript("/apps/script2"));
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(cache.getScript("/apps/script1"));
+        }
+        final int frequency = cache.getHotScripts(2).get("/apps/script1");
+        assertTrue(frequency > 50);
+
+        // the frequencies are halved every 160 accesses for a capacity of 2; script1 misses three halvings at least
+        for (int i = 0; i < 640; i++) {
+            assertNotNull(cache.getScript("/apps/script2"));
+        }
+        assertTrue(cache.getHotScripts(2).get("/apps/script1") <= frequency / 8);
+
+        // an access catches up with the missed halvings before counting
+        for (int i = 0; i < 32; i++) {
+            assertNotNull(cache.getScript("/apps/script1"));
+        }
+        final int agedFrequency = cache.getHotScripts(2).get("/apps/script1");
+        assertTrue(agedFrequency <= frequency / 8 + 32);
+        assertTrue(agedFrequency >= 32);
+    }
+
+    @Test
+    public void testSampledEviction() {
+        final ScriptCacheImpl cache = createCache(100, "lru");
+        for (int i = 0; i < 100; i++) {
+            cache.putScript(mockScript("/apps/script" + i));
+        }
+        assertEquals(100, cache.getCachedScripts().size());
+
+        cache.putScript(mockScript("/apps/new"));
+        // the overflow and a slack of capacity / 32 scripts are evicted
+        assertEquals(97, cache.getCachedScripts().size());
+        assertNotNull(cache.getScript("/apps/new"));
+    }
+
+    @Test
+    public void testSingleFlightCompilation() throws Exception {
+        final ScriptCacheImpl cache = createCache(10, "lru");
+        final CompiledScript compiledScript = Mockito.mock(CompiledScript.class);
+        final AtomicInteger compilations = new AtomicInteger();
+        final CountDownLatch compilationStarted = new CountDownLatch(1);
+        final CountDownLatch releaseCompilation = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<CachedScript> first = executor.submit(() -> cache.getOrCompile("/apps/script", () -> {
+                compilations.incrementAndGet();
+                compilationStarted.countDown();
+                try {
+                    releaseCompilation.await();
+                } catch (InterruptedException e) {
+                    throw new ScriptException(e);
+                }
+                return new CachedScriptImpl("/apps/script", compiledScript);
+            }));
+            assertTrue(compilationStarted.await(5, TimeUnit.SECONDS));
+            final AtomicReference<Thread> secondThread = new AtomicReference<>();
+            final Future<CachedScript> second = executor.submit(() -> {
+                secondThread.set(Thread.currentThread());
+                return cache.getOrCompile("/apps/script", () -> {
+                    compilations.incrementAndGet();
+                    return new CachedScriptImpl("/apps/script", compiledScript);
+                });
+            });
+            // only release the first compilation once the second caller waits for it
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while ((secondThread.get() == null || secondThread.get().getState() != Thread.State.TIMED_WAITING)
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(Thread.State.TIMED_WAITING, secondThread.get().getState());
+            assertEquals(1, compilations.get());
+            releaseCompilation.countDown();
+            assertSame(compiledScript, first.get(5, TimeUnit.SECONDS).getCompiledScript());
+            assertSame(compiledScript, second.get(5, TimeUnit.SECONDS).getCompiledScript());
+            assertEquals(1, compilations.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMemoryBoundEviction() {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_max__memory()).thenReturn(1);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        final long weight = 400 * 1024;
+
+        cache.putScript(new CachedScriptImpl("/apps/script1", null, weight));
+        cache.putScript(new CachedScriptImpl("/apps/script2", null, weight));
+        assertEquals(2 * weight, cache.getWeight());
+
+        cache.putScript(new CachedScriptImpl("/apps/script3", null, weight));
+        List<String> scripts = cache.getCachedScripts();
+        assertEquals(2, scripts.size());
+        assertFalse(scripts.contains("/apps/script1"));
+        assertEquals(2 * weight, cache.getWeight());
+
+        cache.clear();
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testStrongTier() {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_strong__tier__size()).thenReturn(1);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        cache.putScript(mockScript("/apps/script1"));
+        cache.putScript(mockScript("/apps/script2"));
+
+        // the first access doesn't make a script hot yet
+        assertNotNull(cache.getScript("/apps/script1"));
+        assertEquals(0, cache.getStrongTierCount());
+        assertNotNull(cache.getScript("/apps/script1"));
+        assertEquals(1, cache.getStrongTierCount());
+
+        // the strong tier is full
+        assertNotNull(cache.getScript("/apps/script2"));
+        assertNotNull(cache.getScript("/apps/script2"));
+        assertEquals(1, cache.getStrongTierCount());
+
+        cache.removeScript("/apps/script1");
+        assertEquals(0, cache.getStrongTierCount());
+        assertEquals(0, cache.getGarbageCollectedCount());
+    }
+
+    @Test
+    public void testCompilationFailureIsRemembered() throws Exception {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_failure__ttl()).thenReturn(60);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        final AtomicInteger compilations = new AtomicInteger();
+        final ScriptCacheImpl.ScriptCompiler failingCompiler = () -> {
+            compilations.incrementAndGet();
+            throw new ScriptException("syntax error");
+        };
+
+        try {
+            cache.getOrCompile("/apps/script", failingCompiler);
+            fail("Expected a ScriptException.");
+        } catch (ScriptException e) {
+            assertEquals(1, compilations.get());
+        }
+        try {
+            cache.getOrCompile("/apps/script", failingCompiler);
+            fail("Expected a CachedCompilationFailureException.");
+        } catch (CachedCompilationFailureException e) {
+            assertEquals("/apps/script", e.getScriptName());
+            assertEquals(0, e.getStackTrace().length);
+            assertEquals(1, compilations.get());
+        }
+
+        cache.removeScript("/apps/script");
+        assertNotNull(cache.getOrCompile("/apps/script", () -> new CachedScriptImpl("/apps/script", null)));
+    }
+
+    @Test
+    public void testStaleScript() {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_max__staleness()).thenReturn(10);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        final CachedScript script = mockScript("/apps/script.js");
+        cache.putScript(script);
+        cache.putScript(mockScript(ScriptCacheImpl.getVariantKey("/apps/script.js", "render()")));
+
+        assertNull(cache.getStaleScript("/apps/script.js"));
+        assertTrue(cache.markStale("/apps/script.js"));
+        assertSame(script, cache.getScript("/apps/script.js"));
+        assertSame(script, cache.getStaleScript("/apps/script.js"));
+        assertNull(cache.getScript(ScriptCacheImpl.getVariantKey("/apps/script.js", "render()")));
+
+        final CachedScript recompiled = mockScript("/apps/script.js");
+        cache.putScript(recompiled);
+        assertSame(recompiled, cache.getScript("/apps/script.js"));
+        assertNull(cache.getStaleScript("/apps/script.js"));
+
+        assertFalse(cache.markStale("/apps/other.js"));
+
+        final ScriptCacheImpl withoutStaleness = createCache(10, "lru");
+        withoutStaleness.putScript(mockScript("/apps/script.js"));
+        assertFalse(withoutStaleness.markStale("/apps/script.js"));
+        assertNull(withoutStaleness.getScript("/apps/script.js"));
+    }
+
+    @Test
+    public void testSwapGeneration() {
+        final ScriptCacheImpl cache = createCache(10, "lru");
+        cache.putScript(mockScript("/apps/script1.js"));
+        cache.putScript(mockScript(ScriptCacheImpl.getVariantKey("/apps/script1.js", "render()")));
+        cache.putScript(mockScript("/apps/script2.js"));
+        cache.putScript(mockScript("/apps/script3.js"));
+        assertEquals(0, cache.getGeneration());
+
+        final CachedScript recompiled = mockScript("/apps/script1.js");
+        cache.swapGeneration(
+                Collections.singletonMap("/apps/script1.js", recompiled), Collections.singleton("/apps/script2.js"));
+
+        assertEquals(1, cache.getGeneration());
+        assertSame(recompiled, cache.getScript("/apps/script1.js"));
+        assertNull(cache.getScript(ScriptCacheImpl.getVariantKey("/apps/script1.js", "render()")));
+        assertNull(cache.getScript("/apps/script2.js"));
+        assertNotNull(cache.getScript("/apps/script3.js"));
+    }
+
+    @Test
+    public void testRemoveScriptsByExtension() {
+        final ScriptCacheImpl cache = createCache(10, "lru");
+        cache.putScript(mockScript("/apps/script.js"));
+        cache.putScript(mockScript(ScriptCacheImpl.getVariantKey("/apps/script.js", "render()")));
+        cache.putScript(mockScript("/apps/script.html"));
+        cache.putScript(mockScript("/apps/js/script"));
+
+        assertEquals(2, cache.removeScriptsByExtension(Collections.singleton("js")));
+        assertNull(cache.getScript("/apps/script.js"));
+        assertNull(cache.getScript(ScriptCacheImpl.getVariantKey("/apps/script.js", "render()")));
+        assertNotNull(cache.getScript("/apps/script.html"));
+        assertNotNull(cache.getScript("/apps/js/script"));
+        assertEquals(0, cache.removeScriptsByExtension(Collections.emptySet()));
+    }
+
+    @Test
+    public void testEngineAffinity() {
+        final ScriptCacheImpl cache = createCache(10, "lru");
+        final ScriptEngineFactory factory = mockFactory("1.0");
+        final ScriptEngine engine = Mockito.mock(ScriptEngine.class);
+        Mockito.when(engine.getFactory()).thenReturn(factory);
+        final CompiledScript compiledScript = new CompiledScript() {
+            @Override
+            public Object eval(final ScriptContext context) {
+                return null;
+            }
+
+            @Override
+            public ScriptEngine getEngine() {
+                return engine;
+            }
+        };
+        final CachedScript script = Mockito.mock(CachedScript.class);
+        Mockito.when(script.getScriptPath()).thenReturn("/apps/script.js");
+        Mockito.when(script.getCompiledScript()).thenReturn(compiledScript);
+        cache.putScript(script);
+
+        assertSame(script, cache.getScript("/apps/script.js", mockFactory("1.0")));
+        assertEquals(0, cache.getReplacedEngineCount());
+        assertNull(cache.getScript("/apps/script.js", mockFactory("2.0")));
+        assertNull(cache.getScript("/apps/script.js"));
+        assertEquals(1, cache.getReplacedEngineCount());
+    }
+
+    @Test
+    public void testHotScripts() {
+        final ScriptCacheImpl cache = createCache(10, "lru");
+        cache.putScript(mockScript("/apps/script1.js"));
+        cache.putScript(mockScript("/apps/script2.js"));
+        cache.putScript(mockScript("/apps/script3.js"));
+        cache.putScript(mockScript(ScriptCacheImpl.getVariantKey("/apps/script3.js", "render()")));
+        for (int i = 0; i < 3; i++) {
+            cache.getScript("/apps/script2.js");
+            cache.getScript(ScriptCacheImpl.getVariantKey("/apps/script3.js", "render()"));
+        }
+        cache.getScript("/apps/script3.js");
+
+        final Map<String, Integer> hotScripts = cache.getHotScripts(2);
+        assertEquals(Arrays.asList("/apps/script2.js", "/apps/script3.js"), new ArrayList<>(hotScripts.keySet()));
+        assertTrue(hotScripts.get("/apps/script2.js") > hotScripts.get("/apps/script3.js"));
+    }
+
+    @Test
+    public void testAdmissionThreshold() {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_admission__threshold()).thenReturn(3);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+
+        assertFalse(cache.admit("/apps/script1"));
+        assertFalse(cache.admit("/apps/script1"));
+        assertFalse(cache.admit("/apps/script2"));
+        assertTrue(cache.admit("/apps/script1"));
+        assertTrue(cache.admit("/apps/script1"));
+        assertEquals(3, cache.getRejectedAdmissionCount());
+
+        assertTrue(createCache(10, "lru").admit("/apps/script1"));
+    }
+
+    @Test
+    public void testBackgroundCompilation() throws Exception {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_background__compilation()).thenReturn(true);
+        Mockito.when(config.org_apache_sling_scripting_cache_compilation__parallelism()).thenReturn(1);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        final ScriptCompilationScheduler scheduler = new ScriptCompilationScheduler(config);
+        cache.compilationScheduler = scheduler;
+        final CountDownLatch compilationStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger compilations = new AtomicInteger();
+        final ScriptCacheImpl.ScriptCompiler compiler = () -> {
+            compilations.incrementAndGet();
+            compilationStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new ScriptException(e);
+            }
+            return mockScript("/apps/script");
+        };
+        try {
+            assertTrue(cache.isBackgroundCompilationEnabled());
+            assertNull(cache.getOrCompileInBackground("/apps/script", compiler));
+            assertTrue(compilationStarted.await(10, TimeUnit.SECONDS));
+            // the script is interpreted while it's being compiled
+            assertNull(cache.getOrCompileInBackground("/apps/script", compiler));
+            release.countDown();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!cache.isCached("/apps/script") && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNotNull(cache.getOrCompileInBackground("/apps/script", compiler));
+            assertEquals(1, compilations.get());
+        } finally {
+            release.countDown();
+            scheduler.deactivate();
+        }
+    }
+
+    @Test
+    public void testInvalidationDuringBackgroundCompilation() throws Exception {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_background__compilation()).thenReturn(true);
+        Mockito.when(config.org_apache_sling_scripting_cache_compilation__parallelism()).thenReturn(1);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        final ScriptCompilationScheduler scheduler = new ScriptCompilationScheduler(config);
+        cache.compilationScheduler = scheduler;
+        final CountDownLatch compilationStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger compilations = new AtomicInteger();
+        final ScriptCacheImpl.ScriptCompiler compiler = () -> {
+            compilations.incrementAndGet();
+            compilationStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new ScriptException(e);
+            }
+            return mockScript("/apps/script");
+        };
+        try {
+            assertNull(cache.getOrCompileInBackground("/apps/script", compiler));
+            assertTrue(compilationStarted.await(10, TimeUnit.SECONDS));
+            // the script changes while its previous version is being compiled
+            cache.removeScript("/apps/script");
+            release.countDown();
+            // the outdated compilation isn't cached, so the script is compiled again
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (compilations.get() < 2 && System.nanoTime() < deadline) {
+                assertNull(cache.getOrCompileInBackground("/apps/script", compiler));
+                Thread.sleep(10);
+            }
+            assertEquals(2, compilations.get());
+            while (!cache.isCached("/apps/script") && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(cache.isCached("/apps/script"));
+        } finally {
+            release.countDown();
+            scheduler.deactivate();
+        }
+    }
+
+    @Test
+    public void testTimedOutCompilation() throws Exception {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(config.org_apache_sling_scripting_cache_compilation__parallelism()).thenReturn(1);
+        Mockito.when(config.org_apache_sling_scripting_cache_compilation__timeout()).thenReturn(50L);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(config);
+        final ScriptCompilationScheduler scheduler = new ScriptCompilationScheduler(config);
+        cache.compilationScheduler = scheduler;
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger compilations = new AtomicInteger();
+        final ScriptCacheImpl.ScriptCompiler compiler = () -> {
+            compilations.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new ScriptException(e);
+            }
+            return mockScript("/apps/script");
+        };
+        try {
+            assertNull(cache.getOrCompile("/apps/script", compiler));
+            // the compilation that didn't complete in time is shared with the next callers
+            assertNull(cache.getOrCompile("/apps/script", compiler));
+            assertEquals(1, compilations.get());
+
+            cache.removeScript("/apps/script");
+            release.countDown();
+            // the outdated compilation isn't cached once it completes, so the script is compiled again
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            CachedScript script = null;
+            while (script == null && System.nanoTime() < deadline) {
+                script = cache.getOrCompile("/apps/script", compiler);
+                Thread.sleep(10);
+            }
+            assertNotNull(script);
+            assertEquals(2, compilations.get());
+        } finally {
+            release.countDown();
+            scheduler.deactivate();
+        }
+    }
+
+    private ScriptCacheImpl createCache(int size, String evictionPolicy) {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_size()).thenReturn(size);
+        Mockito.when(config.org_apache_sling_scripting_cache_eviction__policy()).thenReturn(evictionPolicy);
+        Mockito.when(config.org_apache_sling_scripting_cache_compilation__timeout())
+                .thenReturn(10000L);
+        return new ScriptCacheImpl(config);
+    }
+
+    private static ScriptEngineFactory mockFactory(final String engineVersion) {
+        final ScriptEngineFactory factory = Mockito.mock(ScriptEngineFactory.class);
+        Mockito.when(factory.getEngineVersion()).thenReturn(engineVersion);
+        return factory;
+    }
+
+    private CachedScript mockScript(String path) {
+        final CachedScript script = Mockito.mock(CachedScript.class);
+        Mockito.when(script.getScriptPath()).thenReturn(path);
+        return script;
+    }
 }
@@ -0,0 +1,412 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.SyntheticResource;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.scripting.api.CachedScript;
+import org.apache.sling.scripting.core.impl.helper.CachedScriptImpl;
+import org.apache.sling.scripting.core.impl.jsr223.SlingScriptEngineManager;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.BundleContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptCacheInvalidatorTest {
+
+    private static final String SCRIPT_PATH = "/apps/test/script.test";
+
+    /**
+     * The sources of the scripts, mapped to their path.
+     */
+    private final Map<String, String> sources = new ConcurrentHashMap<>();
+
+    private final ScriptCacheImplConfiguration configuration = Mockito.mock(ScriptCacheImplConfiguration.class);
+
+    private final ScriptEngineFactory factory = mockFactory(ScriptEngineFactory.class, "1.0");
+
+    private final TestScriptEngine engine = new TestScriptEngine();
+
+    private int invalidationQueueSize = 100;
+
+    private ScriptCompilationScheduler scheduler;
+
+    private ScriptCacheInvalidator invalidator;
+
+    @After
+    public void tearDown() {
+        if (invalidator != null) {
+            invalidator.deactivate();
+        }
+        if (scheduler != null) {
+            scheduler.deactivate();
+        }
+    }
+
+    @Test
+    public void testCollapse() {
+        assertEquals(
+                Arrays.asList("/apps/a", "/apps/a.js", "/apps/b/script.js"),
+                ScriptCacheInvalidator.collapse(Arrays.asList(
+                        "/apps/b/script.js", "/apps/a/script.js", "/apps/a", "/apps/a.js", "/apps/a/b/script.js")));
+    }
+
+    @Test
+    public void testCommonAncestor() {
+        assertEquals("/apps/a", ScriptCacheInvalidator.getCommonAncestor("/apps/a", "/apps/a/script.js"));
+        assertEquals("/apps/a", ScriptCacheInvalidator.getCommonAncestor("/apps/a/b.js", "/apps/a"));
+        assertEquals("/apps", ScriptCacheInvalidator.getCommonAncestor("/apps/a", "/apps/a.js"));
+        assertEquals("/apps", ScriptCacheInvalidator.getCommonAncestor("/apps/foo/a.js", "/apps/for/b.js"));
+        assertEquals("/", ScriptCacheInvalidator.getCommonAncestor("/apps/a.js", "/libs/a.js"));
+    }
+
+    @Test
+    public void testChangedExtensions() {
+        final Map<String, ScriptEngineFactory> previous = new HashMap<>();
+        previous.put("js", mockFactory(ScriptEngineFactory.class, "1.0"));
+        previous.put("esp", previous.get("js"));
+        previous.put("html", mockFactory(ScriptEngineFactory.class, "1.0"));
+        previous.put("jsp", mockFactory(ScriptEngineFactory.class, "1.0"));
+
+        final Map<String, ScriptEngineFactory> current = new HashMap<>();
+        current.put("js", mockFactory(ScriptEngineFactory.class, "1.0"));
+        current.put("esp", mockFactory(OtherScriptEngineFactory.class, "1.0"));
+        current.put("html", mockFactory(ScriptEngineFactory.class, "2.0"));
+        current.put("groovy", mockFactory(ScriptEngineFactory.class, "1.0"));
+
+        assertEquals(
+                new HashSet<>(Arrays.asList("esp", "html", "jsp")),
+                ScriptCacheInvalidator.getChangedExtensions(previous, current));
+        assertEquals(Collections.emptySet(), ScriptCacheInvalidator.getChangedExtensions(current, current));
+    }
+
+    @Test
+    public void testChangeDuringBackgroundRecompilation() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_background__recompilation())
+                .thenReturn(true);
+        Mockito.when(configuration.org_apache_sling_scripting_cache_max__staleness())
+                .thenReturn(60);
+        final ScriptCacheImpl cache = createInvalidator(SCRIPT_PATH);
+        cache.putScript(new CachedScriptImpl(SCRIPT_PATH, new TestCompiledScript(engine, "v0"), 0));
+
+        sources.put(SCRIPT_PATH, "v1");
+        engine.block("v1");
+        invalidator.onChange(Collections.singletonList(
+                new ResourceChange(ResourceChange.ChangeType.CHANGED, SCRIPT_PATH, false)));
+        assertTrue(engine.compiling.await(10, TimeUnit.SECONDS));
+
+        // the script changes again while its first change is recompiled
+        final long epoch = cache.getInvalidationEpoch(SCRIPT_PATH);
+        sources.put(SCRIPT_PATH, "v2");
+        invalidator.onChange(Collections.singletonList(
+                new ResourceChange(ResourceChange.ChangeType.CHANGED, SCRIPT_PATH, false)));
+        assertTrue(waitFor(() -> cache.getInvalidationEpoch(SCRIPT_PATH) != epoch));
+        engine.release.countDown();
+
+        assertTrue(waitFor(() -> "v2".equals(getSource(cache.peekScript(SCRIPT_PATH)))));
+    }
+
+    @Test
+    public void testGeneration() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_generation__settle__time())
+                .thenReturn(10L);
+        final String otherPath = "/apps/test/other.test";
+        final ScriptCacheImpl cache = createInvalidator(SCRIPT_PATH, otherPath);
+        cache.putScript(new CachedScriptImpl(SCRIPT_PATH, new TestCompiledScript(engine, "v0"), 0));
+        cache.putScript(new CachedScriptImpl(otherPath, new TestCompiledScript(engine, "v0"), 0));
+
+        sources.put(SCRIPT_PATH, "v1");
+        sources.put(otherPath, "v1");
+        invalidator.onChange(Arrays.asList(
+                new ResourceChange(ResourceChange.ChangeType.CHANGED, SCRIPT_PATH, false),
+                new ResourceChange(ResourceChange.ChangeType.CHANGED, otherPath, false)));
+        awaitGeneration(cache, 1);
+        assertEquals("v1", getSource(cache.peekScript(SCRIPT_PATH)));
+        assertEquals("v1", getSource(cache.peekScript(otherPath)));
+    }
+
+    @Test
+    public void testOverflowForgetsRemovedDependencies() throws Exception {
+        invalidationQueueSize = 1;
+        final ScriptCacheImpl cache = createInvalidator();
+        final ScriptDependencyGraph graph = new ScriptDependencyGraph();
+        cache.scriptDependencyGraph = graph;
+        graph.setDependencies("/apps/a.test", Collections.singleton("/apps/lib.test"));
+        graph.setDependencies("/apps/c.test", Collections.singleton("/apps/lib.test"));
+
+        invalidator.onChange(Arrays.asList(
+                new ResourceChange(ResourceChange.ChangeType.REMOVED, "/apps/a.test", false),
+                new ResourceChange(ResourceChange.ChangeType.CHANGED, "/apps/b.test", false),
+                new ResourceChange(ResourceChange.ChangeType.REMOVED, "/apps/c.test", false)));
+        assertEquals(1, invalidator.getOverflowCount());
+        assertEquals(Collections.emptySet(), graph.getDependencies("/apps/a.test"));
+        assertEquals(Collections.emptySet(), graph.getDependencies("/apps/c.test"));
+        assertEquals(Collections.emptySet(), graph.getDependents("/apps/lib.test"));
+    }
+
+    @Test
+    public void testGenerationWithBrokenScript() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_generation__settle__time())
+                .thenReturn(10L);
+        final String brokenPath = "/apps/test/broken.test";
+        final ScriptCacheImpl cache = createInvalidator(SCRIPT_PATH, brokenPath);
+        cache.putScript(new CachedScriptImpl(SCRIPT_PATH, new TestCompiledScript(engine, "v0"), 0));
+        cache.putScript(new CachedScriptImpl(brokenPath, new TestCompiledScript(engine, "v0"), 0));
+
+        sources.put(SCRIPT_PATH, "v1");
+        sources.put(brokenPath, TestScriptEngine.BROKEN);
+        invalidator.onChange(Arrays.asList(
+                new ResourceChange(ResourceChange.ChangeType.CHANGED, SCRIPT_PATH, false),
+                new ResourceChange(ResourceChange.ChangeType.CHANGED, brokenPath, false)));
+        awaitGeneration(cache, 1);
+        // only the script which doesn't compile is removed
+        assertEquals("v1", getSource(cache.peekScript(SCRIPT_PATH)));
+        assertNull(cache.peekScript(brokenPath));
+    }
+
+    @Test
+    public void testGenerationOverflow() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_generation__settle__time())
+                .thenReturn(10L);
+        invalidationQueueSize = 1;
+        final String otherPath = "/apps/test/other.test";
+        final String unchangedPath = "/apps/test/unchanged.test";
+        final String outsidePath = "/apps/outside.test";
+        final ScriptCacheImpl cache = createInvalidator();
+        cache.putScript(new CachedScriptImpl(SCRIPT_PATH, new TestCompiledScript(engine, "v0"), 0));
+        cache.putScript(new CachedScriptImpl(otherPath, new TestCompiledScript(engine, "v0"), 0));
+        cache.putScript(new CachedScriptImpl(unchangedPath, new TestCompiledScript(engine, "v0"), 0));
+        cache.putScript(new CachedScriptImpl(outsidePath, new TestCompiledScript(engine, "v0"), 0));
+
+        invalidator.onChange(Arrays.asList(
+                new ResourceChange(ResourceChange.ChangeType.CHANGED, SCRIPT_PATH, false),
+                new ResourceChange(ResourceChange.ChangeType.CHANGED, otherPath, false)));
+        assertEquals(1, invalidator.getOverflowCount());
+        awaitGeneration(cache, 1);
+        // the whole common ancestor of the changes is removed as part of the generation
+        assertNull(cache.peekScript(SCRIPT_PATH));
+        assertNull(cache.peekScript(otherPath));
+        assertNull(cache.peekScript(unchangedPath));
+        assertEquals("v0", getSource(cache.peekScript(outsidePath)));
+    }
+
+    /**
+     * Creates the invalidator of a script cache, whose scripts are compiled by {@link #engine} from {@link #sources}.
+     *
+     * @param paths the paths of the script resources
+     * @return the script cache
+     */
+    private ScriptCacheImpl createInvalidator(final String... paths) throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(configuration.org_apache_sling_scripting_cache_eviction__policy())
+                .thenReturn("LRU");
+        Mockito.when(configuration.org_apache_sling_scripting_cache_invalidation__queue__size())
+                .thenReturn(invalidationQueueSize);
+        Mockito.when(configuration.org_apache_sling_scripting_cache_compilation__queue__size())
+                .thenReturn(100);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(configuration);
+        scheduler = new ScriptCompilationScheduler(configuration);
+        cache.compilationScheduler = scheduler;
+        Mockito.when(factory.getScriptEngine()).thenReturn(engine);
+        final SlingScriptEngineManager manager = new SlingScriptEngineManager();
+        manager.registerEngineExtension("test", factory);
+        invalidator = new ScriptCacheInvalidator(manager, cache, configuration, Mockito.mock(BundleContext.class));
+
+        final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+        for (final String path : paths) {
+            Mockito.when(resolver.getResource(path)).thenReturn(new ScriptResource(path));
+        }
+        final ResourceResolverFactory resolverFactory = Mockito.mock(ResourceResolverFactory.class);
+        Mockito.when(resolverFactory.getServiceResourceResolver(null)).thenReturn(resolver);
+        invalidator.resourceResolverFactory = resolverFactory;
+        return cache;
+    }
+
+    /**
+     * Waits for a generation to be swapped in and merged into the cache.
+     */
+    private static void awaitGeneration(final ScriptCacheImpl cache, final long generation) throws InterruptedException {
+        assertTrue(waitFor(() -> cache.getGeneration() >= generation));
+        // the generation is merged while the cache is locked
+        synchronized (cache) {
+            assertEquals(generation, cache.getGeneration());
+        }
+    }
+
+    private static boolean waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static String getSource(final CachedScript script) {
+        return script != null ? ((TestCompiledScript) script.getCompiledScript()).source : null;
+    }
+
+    private static ScriptEngineFactory mockFactory(
+            final Class<? extends ScriptEngineFactory> type, final String engineVersion) {
+        final ScriptEngineFactory factory = Mockito.mock(type);
+        Mockito.when(factory.getEngineVersion()).thenReturn(engineVersion);
+        return factory;
+    }
+
+    private interface OtherScriptEngineFactory extends ScriptEngineFactory {}
+
+    /**
+     * A script resource whose content is the current source of its script.
+     */
+    private final class ScriptResource extends SyntheticResource {
+
+        ScriptResource(final String path) {
+            super(null, path, "nt:file");
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T adaptTo(final Class<T> type) {
+            if (type == InputStream.class) {
+                return (T) new ByteArrayInputStream(sources.get(getPath()).getBytes(StandardCharsets.UTF_8));
+            }
+            return super.adaptTo(type);
+        }
+    }
+
+    /**
+     * A script engine whose compiled scripts keep their source. The compilation of a given source can be blocked until
+     * {@link #release} is counted down, and the {@link #BROKEN} source doesn't compile.
+     */
+    private final class TestScriptEngine extends AbstractScriptEngine implements Compilable {
+
+        private static final String BROKEN = "broken";
+
+        private final CountDownLatch compiling = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private volatile String blockedSource;
+
+        void block(final String source) {
+            blockedSource = source;
+        }
+
+        @Override
+        public CompiledScript compile(final String script) throws ScriptException {
+            if (BROKEN.equals(script)) {
+                throw new ScriptException("Unable to compile " + script);
+            }
+            if (script.equals(blockedSource)) {
+                compiling.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new TestCompiledScript(this, script);
+        }
+
+        @Override
+        public CompiledScript compile(final Reader script) throws ScriptException {
+            try {
+                return compile(IOUtils.toString(script));
+            } catch (IOException e) {
+                throw new ScriptException(e);
+            }
+        }
+
+        @Override
+        public Object eval(final String script, final ScriptContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object eval(final Reader reader, final ScriptContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Bindings createBindings() {
+            return new SimpleBindings();
+        }
+
+        @Override
+        public ScriptEngineFactory getFactory() {
+            return factory;
+        }
+    }
+
+    private static final class TestCompiledScript extends CompiledScript {
+
+        private final ScriptEngine engine;
+
+        private final String source;
+
+        TestCompiledScript(final ScriptEngine engine, final String source) {
+            this.engine = engine;
+            this.source = source;
+        }
+
+        @Override
+        public Object eval(final ScriptContext context) {
+            return source;
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return engine;
+        }
+    }
+}
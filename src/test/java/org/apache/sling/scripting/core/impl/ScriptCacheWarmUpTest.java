@@ -0,0 +1,386 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.SyntheticResource;
+import org.apache.sling.scripting.core.ScriptNameAwareReader;
+import org.apache.sling.scripting.core.impl.jsr223.SlingScriptEngineManager;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import org.osgi.framework.BundleContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptCacheWarmUpTest {
+
+    private static final String DEPENDENCY_PREFIX = "uses ";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScriptCacheImplConfiguration configuration = Mockito.mock(ScriptCacheImplConfiguration.class);
+
+    private final ScriptEngineFactory factory = Mockito.mock(ScriptEngineFactory.class);
+
+    private final TestScriptEngine engine = new TestScriptEngine();
+
+    private final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+
+    private final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+
+    /**
+     * The paths of the compiled scripts, in the order of their compilation.
+     */
+    private final List<String> compiled = Collections.synchronizedList(new ArrayList<>());
+
+    private ScriptCompilationScheduler scheduler;
+
+    private ScriptCacheWarmUp warmUp;
+
+    @After
+    public void tearDown() {
+        if (warmUp != null) {
+            warmUp.deactivate();
+        }
+        if (scheduler != null) {
+            scheduler.deactivate();
+        }
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_warm__up()).thenReturn(true);
+        addScripts(new ScriptResource("/apps/a.test", "a"), new ScriptResource("/apps/b.test", "uses /apps/lib.test"));
+        final ScriptCacheImpl cache = createCache();
+        final ScriptDependencyGraph graph = new ScriptDependencyGraph();
+        cache.scriptDependencyGraph = graph;
+        engine.graph = graph;
+        graph.setDependencies("/apps/b.test", Collections.singleton("/apps/removed.test"));
+
+        warmUp = createWarmUp(cache);
+        assertTrue(waitFor(() -> warmUp.getState() == ScriptCacheWarmUp.State.COMPLETED));
+        assertEquals(2, warmUp.getCompiledCount());
+        assertTrue(cache.isCached("/apps/a.test"));
+        assertTrue(cache.isCached("/apps/b.test"));
+        // the warm-up compiles through the same helper as the requests, which replaces the dependencies of the script
+        assertEquals(Collections.singleton("/apps/lib.test"), graph.getDependencies("/apps/b.test"));
+    }
+
+    @Test
+    public void testWarmUpGivesWayToRequests() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_warm__up()).thenReturn(true);
+        addScripts(new ScriptResource("/apps/a.test", "a"), new ScriptResource("/apps/b.test", "b"));
+        final ScriptCacheImpl cache = createCache();
+
+        // keep the only compilation thread busy until the warm-up and the request wait for it
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(ScriptCompilationScheduler.PRIORITY_BACKGROUND, () -> {
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        });
+        warmUp = createWarmUp(cache);
+        assertTrue(waitFor(() -> scheduler.getQueuedCount() == 1));
+        scheduler.submit(ScriptCompilationScheduler.PRIORITY_WAITING, () -> compiled.add("request"));
+        release.countDown();
+
+        assertTrue(waitFor(() -> warmUp.getState() == ScriptCacheWarmUp.State.COMPLETED));
+        assertEquals(Arrays.asList("request", "/apps/a.test", "/apps/b.test"), compiled);
+    }
+
+    @Test
+    public void testReplayHottestFirst() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_manifest__size()).thenReturn(3);
+        addScripts(
+                new ScriptResource("/apps/a.test", "a"),
+                new ScriptResource("/apps/b.test", "b"),
+                new ScriptResource("/apps/c.test", "c"),
+                new ScriptResource("/apps/d.test", "d"));
+        writeManifest("1 /apps/a.test\n5 /apps/b.test\n3 /apps/c.test\n3 /apps/d.test\n");
+        final ScriptCacheImpl cache = createCache();
+
+        warmUp = createWarmUp(cache);
+        assertTrue(waitFor(() -> warmUp.getState() == ScriptCacheWarmUp.State.COMPLETED));
+        // truncated to the manifest size, the scripts with as many hits keeping their order
+        assertEquals(Arrays.asList("/apps/b.test", "/apps/c.test", "/apps/d.test"), compiled);
+    }
+
+    @Test
+    public void testReplayStopsAtTheCacheSize() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_manifest__size()).thenReturn(10);
+        addScripts(
+                new ScriptResource("/apps/a.test", "a"),
+                new ScriptResource("/apps/b.test", "b"),
+                new ScriptResource("/apps/c.test", "c"));
+        writeManifest("1 /apps/a.test\n2 /apps/b.test\n3 /apps/c.test\n");
+        final ScriptCacheImpl cache = createCache();
+        Mockito.when(configuration.org_apache_sling_scripting_cache_size()).thenReturn(2);
+
+        warmUp = createWarmUp(cache);
+        assertTrue(waitFor(() -> warmUp.getState() == ScriptCacheWarmUp.State.COMPLETED));
+        assertEquals(Arrays.asList("/apps/c.test", "/apps/b.test"), compiled);
+    }
+
+    @Test
+    public void testImportManifest() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_manifest__size()).thenReturn(2);
+        addScripts(
+                new ScriptResource("/apps/a.test", "a"),
+                new ScriptResource("/apps/b.test", "b"),
+                new ScriptResource("/apps/c.test", "c"));
+        final ScriptCacheImpl cache = createCache();
+        warmUp = createWarmUp(cache);
+        assertTrue(waitFor(() -> warmUp.getState() == ScriptCacheWarmUp.State.COMPLETED));
+        assertEquals(Collections.emptyList(), compiled);
+
+        warmUp.importManifest(new StringReader("1 /apps/a.test\n3 /apps/b.test\n2 /apps/c.test\n"));
+        assertTrue(waitFor(() -> warmUp.getState() == ScriptCacheWarmUp.State.COMPLETED));
+        assertEquals("3 /apps/b.test\n2 /apps/c.test\n", readManifest());
+        assertEquals(Arrays.asList("/apps/b.test", "/apps/c.test"), compiled);
+    }
+
+    @Test
+    public void testConsoleImport() throws Exception {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_manifest__size()).thenReturn(2);
+        addScripts(new ScriptResource("/apps/a.test", "a"), new ScriptResource("/apps/b.test", "b"));
+        warmUp = createWarmUp(createCache());
+        final ScriptCacheConsolePlugin plugin = new ScriptCacheConsolePlugin();
+        plugin.scriptCacheWarmUp = warmUp;
+
+        final HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getParameter("manifest")).thenReturn("1 /apps/a.test\n2 /apps/b.test\n");
+        Mockito.when(request.getRequestURI()).thenReturn("/system/console/scriptcache");
+        final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        plugin.doPost(request, response);
+        Mockito.verify(response).sendRedirect("/system/console/scriptcache");
+        assertEquals("2 /apps/b.test\n1 /apps/a.test\n", readManifest());
+        assertTrue(waitFor(() -> compiled.size() == 2));
+        assertEquals(Arrays.asList("/apps/b.test", "/apps/a.test"), compiled);
+
+        final HttpServletRequest malformed = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(malformed.getParameter("manifest")).thenReturn("/apps/a.test");
+        final HttpServletResponse rejected = Mockito.mock(HttpServletResponse.class);
+        plugin.doPost(malformed, rejected);
+        Mockito.verify(rejected)
+                .sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed script cache manifest line: /apps/a.test");
+    }
+
+    /**
+     * Creates a script cache whose scripts are compiled on a single thread, in the order they're scheduled.
+     */
+    private ScriptCacheImpl createCache() {
+        Mockito.when(configuration.org_apache_sling_scripting_cache_size()).thenReturn(10);
+        Mockito.when(configuration.org_apache_sling_scripting_cache_eviction__policy())
+                .thenReturn("LRU");
+        Mockito.when(configuration.org_apache_sling_scripting_cache_compilation__parallelism())
+                .thenReturn(1);
+        Mockito.when(configuration.org_apache_sling_scripting_cache_compilation__timeout())
+                .thenReturn(10000L);
+        Mockito.when(configuration.org_apache_sling_scripting_cache_compilation__queue__size())
+                .thenReturn(100);
+        Mockito.when(configuration.org_apache_sling_scripting_cache_warm__up__parallelism())
+                .thenReturn(1);
+        final ScriptCacheImpl cache = new ScriptCacheImpl(configuration);
+        scheduler = new ScriptCompilationScheduler(configuration);
+        cache.compilationScheduler = scheduler;
+        return cache;
+    }
+
+    private ScriptCacheWarmUp createWarmUp(final ScriptCacheImpl cache) throws Exception {
+        Mockito.when(factory.getScriptEngine()).thenReturn(engine);
+        Mockito.when(factory.getExtensions()).thenReturn(Collections.singletonList("test"));
+        Mockito.when(factory.getEngineVersion()).thenReturn("1.0");
+        final SlingScriptEngineManager manager = new SlingScriptEngineManager() {
+            @Override
+            public List<ScriptEngineFactory> getEngineFactories() {
+                return Collections.singletonList(factory);
+            }
+        };
+        manager.registerEngineExtension("test", factory);
+        final ResourceResolverFactory resolverFactory = Mockito.mock(ResourceResolverFactory.class);
+        Mockito.when(resolverFactory.getServiceResourceResolver(null)).thenReturn(resolver);
+        Mockito.when(bundleContext.getDataFile(ScriptCacheManifest.FILE_NAME))
+                .thenReturn(folder.getRoot().toPath().resolve(ScriptCacheManifest.FILE_NAME).toFile());
+        return new ScriptCacheWarmUp(manager, cache, resolverFactory, configuration, bundleContext);
+    }
+
+    private void writeManifest(final String manifest) throws IOException {
+        Files.write(
+                folder.getRoot().toPath().resolve(ScriptCacheManifest.FILE_NAME),
+                manifest.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readManifest() throws IOException {
+        return new String(
+                Files.readAllBytes(folder.getRoot().toPath().resolve(ScriptCacheManifest.FILE_NAME)),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds scripts to the {@code /apps} search path, in the order they're listed.
+     */
+    private void addScripts(final ScriptResource... scripts) {
+        final List<Resource> children = new ArrayList<>();
+        for (final ScriptResource script : scripts) {
+            Mockito.when(resolver.getResource(script.getPath())).thenReturn(script);
+            children.add(script);
+        }
+        Mockito.when(resolver.getSearchPath()).thenReturn(new String[] {"/apps"});
+        Mockito.when(resolver.getResource("/apps")).thenReturn(new SyntheticResource(null, "/apps", "sling:Folder") {
+            @Override
+            public Iterator<Resource> listChildren() {
+                return children.iterator();
+            }
+        });
+    }
+
+    private static boolean waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static final class ScriptResource extends SyntheticResource {
+
+        private final String source;
+
+        ScriptResource(final String path, final String source) {
+            super(null, path, "nt:file");
+            this.source = source;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T adaptTo(final Class<T> type) {
+            if (type == InputStream.class) {
+                return (T) new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8));
+            }
+            return super.adaptTo(type);
+        }
+
+        @Override
+        public Iterator<Resource> listChildren() {
+            return Collections.emptyIterator();
+        }
+    }
+
+    /**
+     * A script engine recording the scripts it compiles. A script whose source is {@code uses <path>} registers a dependency
+     * on the script at that path.
+     */
+    private final class TestScriptEngine extends AbstractScriptEngine implements Compilable {
+
+        private ScriptDependencyGraph graph;
+
+        @Override
+        public CompiledScript compile(final Reader script) throws ScriptException {
+            final String scriptName = ((ScriptNameAwareReader) script).getScriptName();
+            final String source;
+            try {
+                source = IOUtils.toString(script);
+            } catch (IOException e) {
+                throw new ScriptException(e);
+            }
+            compiled.add(scriptName);
+            if (graph != null && source.startsWith(DEPENDENCY_PREFIX)) {
+                graph.addDependency(scriptName, source.substring(DEPENDENCY_PREFIX.length()));
+            }
+            return new CompiledScript() {
+                @Override
+                public Object eval(final ScriptContext context) {
+                    return source;
+                }
+
+                @Override
+                public ScriptEngine getEngine() {
+                    return TestScriptEngine.this;
+                }
+            };
+        }
+
+        @Override
+        public CompiledScript compile(final String script) throws ScriptException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object eval(final String script, final ScriptContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object eval(final Reader reader, final ScriptContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Bindings createBindings() {
+            return new SimpleBindings();
+        }
+
+        @Override
+        public ScriptEngineFactory getFactory() {
+            return factory;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.ScriptException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptCompilationSchedulerTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private ScriptCompilationScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (scheduler != null) {
+            scheduler.deactivate();
+        }
+    }
+
+    @Test
+    public void testHottestCompilationsFirst() throws Exception {
+        scheduler = createScheduler(0);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(0, () -> {
+            started.countDown();
+            return block();
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        scheduler.submit(1, () -> order.add("cold"));
+        scheduler.submit(ScriptCompilationScheduler.PRIORITY_WAITING, () -> order.add("waiting"));
+        final CompletableFuture<Boolean> last = scheduler.submit(5, () -> order.add("warm"));
+        release.countDown();
+
+        last.get(10, TimeUnit.SECONDS);
+        scheduler.submit(0, () -> true).get(10, TimeUnit.SECONDS);
+        assertEquals("waiting", order.get(0));
+        assertEquals("warm", order.get(1));
+        assertEquals("cold", order.get(2));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        scheduler = createScheduler(50);
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(0, () -> {
+            started.countDown();
+            return block();
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        assertNull(scheduler.compile(ScriptCompilationScheduler.PRIORITY_WAITING, () -> "compiled"));
+        assertEquals(1, scheduler.getTimedOutCount());
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void testQueueSize() throws Exception {
+        scheduler = createScheduler(0, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(0, () -> {
+            started.countDown();
+            return block();
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        final CompletableFuture<String> queued = scheduler.submit(0, () -> "queued");
+        assertNull(scheduler.submit(0, () -> "rejected").getNow("waiting"));
+        assertEquals(1, scheduler.getRejectedCount());
+        release.countDown();
+        assertEquals("queued", queued.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testThreadResourceResolverClosed() throws Exception {
+        scheduler = createScheduler(0);
+        final ResourceResolver delegate = Mockito.mock(ResourceResolver.class);
+        final ResourceResolverFactory resourceResolverFactory = Mockito.mock(ResourceResolverFactory.class);
+        Mockito.when(resourceResolverFactory.getServiceResourceResolver(null)).thenReturn(delegate);
+        final ScriptingResourceResolverProviderImpl provider = new ScriptingResourceResolverProviderImpl();
+        FieldUtils.getField(ScriptingResourceResolverProviderImpl.class, "rrf", true)
+                .set(provider, resourceResolverFactory);
+        scheduler.scriptingResourceResolverProvider = provider;
+
+        final CompletableFuture<ResourceResolver> resolver =
+                scheduler.submit(0, provider::getRequestScopedResourceResolver);
+        assertEquals(delegate, FieldUtils.readField(resolver.get(10, TimeUnit.SECONDS), "delegate", true));
+        // the resolver is closed right after the compilation completed its result
+        scheduler.submit(0, () -> true).get(10, TimeUnit.SECONDS);
+        Mockito.verify(delegate).close();
+    }
+
+    private Boolean block() throws ScriptException {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            throw new ScriptException(e);
+        }
+        return true;
+    }
+
+    private static ScriptCompilationScheduler createScheduler(long timeout) {
+        return createScheduler(timeout, ScriptCompilationScheduler.DEFAULT_COMPILATION_QUEUE_SIZE);
+    }
+
+    private static ScriptCompilationScheduler createScheduler(long timeout, int queueSize) {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_compilation__parallelism()).thenReturn(1);
+        Mockito.when(config.org_apache_sling_scripting_cache_compilation__timeout()).thenReturn(timeout);
+        Mockito.when(config.org_apache_sling_scripting_cache_compilation__queue__size())
+                .thenReturn(queueSize);
+        return new ScriptCompilationScheduler(config);
+    }
+}
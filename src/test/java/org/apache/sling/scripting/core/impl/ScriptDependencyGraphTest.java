@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScriptDependencyGraphTest {
+
+    @Test
+    public void testTransitiveDependents() {
+        final ScriptDependencyGraph graph = new ScriptDependencyGraph();
+        graph.addDependency("/apps/page/page.html", "/apps/templates/list.html");
+        graph.addDependency("/apps/templates/list.html", "/apps/templates/item.html");
+        graph.addDependency("/apps/templates/item.html", "/apps/templates/list.html");
+        graph.addDependency("/apps/other/other.html", "/apps/lib/util.js");
+
+        assertEquals(
+                new HashSet<>(Arrays.asList("/apps/page/page.html", "/apps/templates/list.html")),
+                graph.getDependents("/apps/templates/item.html"));
+        assertEquals(
+                new HashSet<>(Arrays.asList(
+                        "/apps/page/page.html", "/apps/templates/list.html", "/apps/templates/item.html")),
+                graph.getDependents("/apps/templates"));
+        assertEquals(Collections.singleton("/apps/other/other.html"), graph.getDependents("/apps/lib"));
+        assertEquals(Collections.emptySet(), graph.getDependents("/apps/page/page.html"));
+    }
+
+    @Test
+    public void testSetAndRemoveDependencies() {
+        final ScriptDependencyGraph graph = new ScriptDependencyGraph();
+        graph.setDependencies("/apps/page.html", Arrays.asList("/apps/a.html", "/apps/b.html"));
+        graph.setDependencies("/apps/page.html", Collections.singleton("/apps/b.html"));
+
+        assertEquals(Collections.singleton("/apps/b.html"), graph.getDependencies("/apps/page.html"));
+        assertEquals(Collections.emptySet(), graph.getDependents("/apps/a.html"));
+
+        graph.removeDependencies("/apps/page.html");
+        assertEquals(Collections.emptySet(), graph.getDependents("/apps/b.html"));
+        assertEquals(Collections.emptyMap(), graph.getGraph());
+    }
+
+    @Test
+    public void testNestedCompilations() {
+        final ScriptDependencyGraph graph = new ScriptDependencyGraph();
+        graph.startCompilation("/apps/page.html");
+        graph.startCompilation("/apps/template.html");
+        graph.endCompilation();
+        graph.endCompilation();
+        graph.startCompilation("/apps/other.html");
+        graph.endCompilation();
+
+        assertEquals(Collections.singleton("/apps/template.html"), graph.getDependencies("/apps/page.html"));
+        assertEquals(Collections.emptySet(), graph.getDependencies("/apps/other.html"));
+
+        // the template is cached now, so it isn't compiled again and is no dependency unless the engine registers it
+        graph.startCompilation("/apps/page.html");
+        graph.endCompilation();
+        assertEquals(Collections.emptySet(), graph.getDependencies("/apps/page.html"));
+        assertEquals(Collections.emptySet(), graph.getDependents("/apps/template.html"));
+    }
+
+    @Test
+    public void testCachedDependencies() {
+        final ScriptDependencyGraph graph = new ScriptDependencyGraph();
+        graph.startCompilation("/apps/page.html");
+        graph.addDependency("/apps/page.html", "/apps/template.html");
+        graph.addDependency("/apps/page.html", "/apps/removed.html");
+        assertEquals(
+                "The dependencies are only recorded once the compilation ends.",
+                Collections.emptySet(),
+                graph.getDependencies("/apps/page.html"));
+        graph.endCompilation();
+        assertEquals(
+                new HashSet<>(Arrays.asList("/apps/template.html", "/apps/removed.html")),
+                graph.getDependencies("/apps/page.html"));
+
+        // the page is compiled again while the template it registers is cached, and it no longer uses the removed script
+        graph.startCompilation("/apps/page.html");
+        graph.addDependency("/apps/page.html", "/apps/template.html");
+        graph.endCompilation();
+
+        assertEquals(Collections.singleton("/apps/template.html"), graph.getDependencies("/apps/page.html"));
+        assertEquals(Collections.singleton("/apps/page.html"), graph.getDependents("/apps/template.html"));
+        assertEquals(Collections.emptySet(), graph.getDependents("/apps/removed.html"));
+    }
+}
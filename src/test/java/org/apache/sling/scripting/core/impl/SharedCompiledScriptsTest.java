@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SharedCompiledScriptsTest {
+
+    @Test
+    public void testIdenticalSourcesShareCompiledScript() throws Exception {
+        final SharedCompiledScripts sharedScripts = new SharedCompiledScripts(createConfiguration(true));
+        final ScriptEngine engine = mockEngine("1.0");
+        final AtomicInteger compilations = new AtomicInteger();
+        final SharedCompiledScripts.Compiler compiler = () -> {
+            compilations.incrementAndGet();
+            return new TestCompiledScript(engine);
+        };
+
+        final CompiledScript first = sharedScripts.getOrCompile(engine, "source", compiler);
+        assertSame(first, sharedScripts.getOrCompile(engine, "source", compiler));
+        assertNotSame(first, sharedScripts.getOrCompile(engine, "other source", compiler));
+        assertNotSame(first, sharedScripts.getOrCompile(mockEngine("2.0"), "source", compiler));
+
+        assertEquals(3, compilations.get());
+        assertEquals(1, sharedScripts.getSharedCount());
+        assertEquals(3, sharedScripts.getDistinctCount());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        final SharedCompiledScripts sharedScripts = new SharedCompiledScripts(createConfiguration(false));
+        final ScriptEngine engine = mockEngine("1.0");
+        final SharedCompiledScripts.Compiler compiler = () -> new TestCompiledScript(engine);
+
+        assertNotSame(
+                sharedScripts.getOrCompile(engine, "source", compiler),
+                sharedScripts.getOrCompile(engine, "source", compiler));
+        assertEquals(0, sharedScripts.getSharedCount());
+    }
+
+    private static ScriptCacheImplConfiguration createConfiguration(boolean contentSharing) {
+        final ScriptCacheImplConfiguration config = Mockito.mock(ScriptCacheImplConfiguration.class);
+        Mockito.when(config.org_apache_sling_scripting_cache_content__sharing()).thenReturn(contentSharing);
+        return config;
+    }
+
+    private static ScriptEngine mockEngine(String version) {
+        final ScriptEngineFactory factory = Mockito.mock(ScriptEngineFactory.class);
+        Mockito.when(factory.getEngineName()).thenReturn("test");
+        Mockito.when(factory.getEngineVersion()).thenReturn(version);
+        final ScriptEngine engine = Mockito.mock(ScriptEngine.class);
+        Mockito.when(engine.getFactory()).thenReturn(factory);
+        return engine;
+    }
+
+    private static final class TestCompiledScript extends CompiledScript {
+
+        private final ScriptEngine engine;
+
+        TestCompiledScript(ScriptEngine engine) {
+            this.engine = engine;
+        }
+
+        @Override
+        public Object eval(ScriptContext context) {
+            return null;
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return engine;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl.jsr223;
+
+import javax.script.ScriptEngine;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ScriptEngineProviderTest {
+
+    @Test
+    public void testSharedEngine() throws Exception {
+        final ScriptEngineProvider provider = new ScriptEngineProvider(new ThreadingScriptEngineFactory("STATELESS"), 0);
+        final ScriptEngine engine = provider.getScriptEngine();
+        assertSame(engine, provider.getScriptEngine());
+        assertSame(engine, getScriptEngineOnOtherThread(provider));
+        assertEquals(1, provider.getInstantiationCount());
+    }
+
+    @Test
+    public void testPerThreadEngines() throws Exception {
+        final ScriptEngineProvider provider =
+                new ScriptEngineProvider(new ThreadingScriptEngineFactory("THREAD-ISOLATED"), 1);
+        final ScriptEngine engine = provider.getScriptEngine();
+        assertSame(engine, provider.getScriptEngine());
+        // the pool is full, so other threads get a new engine every time
+        assertNotSame(engine, getScriptEngineOnOtherThread(provider));
+        assertNotSame(engine, getScriptEngineOnOtherThread(provider));
+        assertEquals(3, provider.getInstantiationCount());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        final ScriptEngineProvider provider =
+                new ScriptEngineProvider(new ThreadingScriptEngineFactory("THREAD-ISOLATED"), 2);
+        final ScriptEngine engine = provider.getScriptEngine();
+        provider.clear();
+
+        // a replaced provider doesn't keep engines anymore
+        final ScriptEngine newEngine = provider.getScriptEngine();
+        assertNotSame(engine, newEngine);
+        assertNotSame(newEngine, provider.getScriptEngine());
+        assertEquals(3, provider.getInstantiationCount());
+    }
+
+    @Test
+    public void testNewEngines() {
+        // the dummy factory doesn't tell its threading model, so its engines are not thread-safe
+        final ScriptEngineProvider provider = new ScriptEngineProvider(new DummyScriptEngineFactory(), 0);
+        assertNotSame(provider.getScriptEngine(), provider.getScriptEngine());
+        assertEquals(2, provider.getInstantiationCount());
+    }
+
+    private static ScriptEngine getScriptEngineOnOtherThread(final ScriptEngineProvider provider) throws Exception {
+        final AtomicReference<ScriptEngine> engine = new AtomicReference<>();
+        final Thread thread = new Thread(() -> engine.set(provider.getScriptEngine()));
+        thread.start();
+        thread.join();
+        return engine.get();
+    }
+
+    private static final class ThreadingScriptEngineFactory extends DummyScriptEngineFactory {
+
+        private final String threading;
+
+        ThreadingScriptEngineFactory(final String threading) {
+            this.threading = threading;
+        }
+
+        @Override
+        public Object getParameter(final String key) {
+            return "THREADING".equals(key) ? threading : null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl.jsr223;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the associations registered on the {@link SlingScriptEngineManager} itself, which don't need any factory to be
+ * discovered.
+ */
+public class SlingScriptEngineManagerRegistrationTest {
+
+    @Test
+    public void testRegisteredExtension() {
+        final SlingScriptEngineManager manager = new SlingScriptEngineManager();
+        final ScriptEngineFactory factory = new DummyScriptEngineFactory();
+        assertNull(manager.getEngineByExtension("registered"));
+
+        manager.registerEngineExtension("registered", factory);
+        final ScriptEngine engine = manager.getEngineByExtension("registered");
+        assertNotNull(engine);
+        assertSame(factory, engine.getFactory());
+        assertSame(factory, getDelegate(manager.getEngineFactoryByExtension("registered")));
+        assertEquals(1, manager.getEnginesByExtension("registered").size());
+    }
+
+    @Test
+    public void testRegisteredMimeType() {
+        final SlingScriptEngineManager manager = new SlingScriptEngineManager();
+        final ScriptEngineFactory factory = new DummyScriptEngineFactory();
+
+        manager.registerEngineMimeType("application/x-registered", factory);
+        assertSame(factory, manager.getEngineByMimeType("application/x-registered").getFactory());
+        assertSame(factory, getDelegate(manager.getEngineFactoryByMimeType("application/x-registered")));
+    }
+
+    @Test
+    public void testRegisteredName() {
+        final SlingScriptEngineManager manager = new SlingScriptEngineManager();
+        final ScriptEngineFactory factory = new DummyScriptEngineFactory();
+
+        manager.registerEngineName("registered", factory);
+        assertSame(factory, manager.getEngineByName("registered").getFactory());
+        final List<ScriptEngine> engines = manager.getEnginesByName("registered");
+        assertEquals(1, engines.size());
+        assertSame(factory, engines.get(0).getFactory());
+    }
+
+    @Test
+    public void testRegistrationTakesPrecedence() {
+        final SlingScriptEngineManager manager = new SlingScriptEngineManager();
+        final ScriptEngineFactory first = new DummyScriptEngineFactory();
+        final ScriptEngineFactory second = new DummyScriptEngineFactory();
+
+        manager.registerEngineExtension("registered", first);
+        manager.registerEngineExtension("registered", second);
+        assertSame(second, manager.getEngineByExtension("registered").getFactory());
+        // the registered factories are not discovered factories
+        assertEquals(0, manager.getEngineFactories().stream()
+                .filter(factory -> getDelegate(factory) == first || getDelegate(factory) == second)
+                .count());
+    }
+
+    private static ScriptEngineFactory getDelegate(final ScriptEngineFactory factory) {
+        return factory instanceof SortableScriptEngineFactory
+                ? ((SortableScriptEngineFactory) factory).getDelegate()
+                : factory;
+    }
+}
@@ -52,6 +52,7 @@ import org.osgi.service.event.EventHandler;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -64,7 +65,8 @@ public class SlingScriptEngineManagerTest {
 
     @Before
     public void setUp() {
-        context.registerInjectActivateService(new SlingScriptEngineManager());
+        // announce every update right away, so that the events can be counted
+        context.registerInjectActivateService(new SlingScriptEngineManager(), "update.delay", 0);
     }
 
     @Test
@@ -79,6 +81,16 @@ public class SlingScriptEngineManagerTest {
                 scriptEngineManager.getEngineFactories().size());
     }
 
+    @Test
+    public void testInitialDiscovery() {
+        SlingScriptEngineManager slingScriptEngineManager = context.getService(SlingScriptEngineManager.class);
+        assertTrue("Expected the initial discovery to complete.", slingScriptEngineManager.awaitDiscovery());
+        assertTrue(slingScriptEngineManager.isDiscoveryComplete());
+        assertTrue(
+                "Did not expect any bundle providing script engine factories.",
+                slingScriptEngineManager.getDiscoveryTimes().isEmpty());
+    }
+
     @Test
     public void testOSGiRegisteredFactoriesDifferentServiceRanking() throws Exception {
         int numberOfOSGiRegisteredFactories = 2;
@@ -154,6 +166,13 @@ public class SlingScriptEngineManagerTest {
         assertEquals(f2, scriptEngineManager.getEngineByName("f2").getFactory());
         assertEquals(f2, scriptEngineManager.getEngineByExtension("f2").getFactory());
         assertEquals(f2, scriptEngineManager.getEngineByMimeType("f2/text").getFactory());
+        assertEquals(
+                f2.getEngineName(),
+                slingScriptEngineManager.getEngineFactoryByExtension("f2").getEngineName());
+        assertEquals(
+                f2.getEngineName(),
+                slingScriptEngineManager.getEngineFactoryByMimeType("f2/text").getEngineName());
+        assertNull(slingScriptEngineManager.getEngineFactoryByExtension("f1"));
         assertNull(
                 "Did not expect references to the already unregistered f1 ScriptEngineFactory",
                 scriptEngineManager.getEngineByName("f1"));
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.core.impl.jsr223;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UpdateDebouncerTest {
+
+    private final AtomicInteger announcements = new AtomicInteger();
+
+    private UpdateDebouncer debouncer;
+
+    @After
+    public void tearDown() {
+        if (debouncer != null) {
+            debouncer.shutdown();
+        }
+    }
+
+    @Test
+    public void testImmediateAnnouncements() {
+        debouncer = new UpdateDebouncer(announcements::incrementAndGet, 0, "test-update");
+        debouncer.update();
+        debouncer.update();
+        assertEquals(2, announcements.get());
+    }
+
+    @Test
+    public void testBurstCoalesced() throws Exception {
+        debouncer = new UpdateDebouncer(announcements::incrementAndGet, 200, "test-update");
+        for (int i = 0; i < 5; i++) {
+            debouncer.update();
+        }
+        assertEquals("The burst should not be announced before it settled.", 0, announcements.get());
+        awaitAnnouncements(1);
+        // give a wrongly scheduled second announcement the time to run
+        Thread.sleep(400);
+        assertEquals(1, announcements.get());
+    }
+
+    @Test
+    public void testBurstCapped() throws Exception {
+        final long delay = 50;
+        debouncer = new UpdateDebouncer(announcements::incrementAndGet, delay, "test-update");
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay * UpdateDebouncer.MAX_DELAY_FACTOR * 3);
+        while (System.nanoTime() < end) {
+            debouncer.update();
+            Thread.sleep(delay / 5);
+        }
+        // the burst lasts three times the maximum delay
+        assertTrue(
+                "A burst that doesn't settle should be announced after at most ten times the delay.",
+                announcements.get() >= 2);
+    }
+
+    private void awaitAnnouncements(final int expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (announcements.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, announcements.get());
+    }
+}